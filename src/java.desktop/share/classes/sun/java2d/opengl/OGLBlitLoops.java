@@ -32,7 +32,6 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
-import java.lang.ref.WeakReference;
 import sun.java2d.SurfaceData;
 import sun.java2d.loops.Blit;
 import sun.java2d.loops.CompositeType;
@@ -249,6 +248,27 @@ final class OGLBlitLoops {
         buf.putLong(dst.getNativeOps());
     }
 
+    /**
+     * Enqueues a SURFACE_TO_SW_BLIT operation with the given parameters.
+     * Note that the RenderQueue lock must be held, and a context must have
+     * been made current to the source surface, before calling this method.
+     */
+    static void enqueueReadback(RenderQueue rq,
+                                SurfaceData src, SurfaceData dst,
+                                int sx, int sy, int dx, int dy,
+                                int w, int h, int typeval)
+    {
+        RenderBuffer buf = rq.getBuffer();
+        rq.ensureCapacityAndAlignment(48, 32);
+        buf.putInt(SURFACE_TO_SW_BLIT);
+        buf.putInt(sx).putInt(sy);
+        buf.putInt(dx).putInt(dy);
+        buf.putInt(w).putInt(h);
+        buf.putInt(typeval);
+        buf.putLong(src.getNativeOps());
+        buf.putLong(dst.getNativeOps());
+    }
+
     static void Blit(SurfaceData srcData, SurfaceData dstData,
                      Composite comp, Region clip,
                      AffineTransform xform, int hint,
@@ -258,6 +278,16 @@ final class OGLBlitLoops {
                      double dx2, double dy2,
                      int srctype, boolean texture)
     {
+        if (dstData instanceof OGLTextureAtlas.Region) {
+            // upload to the location of the region in its atlas page
+            OGLTextureAtlas.Region r = (OGLTextureAtlas.Region)dstData;
+            dx1 += r.getX();
+            dy1 += r.getY();
+            dx2 += r.getX();
+            dy2 += r.getY();
+            dstData = r.getPage();
+        }
+
         int ctxflags = 0;
         if (srcData.getTransparency() == Transparency.OPAQUE) {
             ctxflags |= OGLContext.SRC_IS_OPAQUE;
@@ -266,6 +296,21 @@ final class OGLBlitLoops {
         OGLRenderQueue rq = OGLRenderQueue.getInstance();
         rq.lock();
         try {
+            // copy the source pixels to the staging arena (if enabled), so
+            // that the operation does not depend on the system memory
+            // surface anymore
+            OGLStagingArena arena = rq.getStagingArena();
+            SurfaceData staged = (arena != null) ?
+                arena.stage(srcData, sx1, sy1, sx2 - sx1, sy2 - sy1) : null;
+            if (staged != null) {
+                sx2 = arena.getStagedX() + (sx2 - sx1);
+                sy2 = arena.getStagedY() + (sy2 - sy1);
+                sx1 = arena.getStagedX();
+                sy1 = arena.getStagedY();
+                srcData = staged;
+                srctype = OGLSurfaceData.PF_INT_ARGB_PRE;
+            }
+
             // make sure the RenderQueue keeps a hard reference to the
             // source (sysmem) SurfaceData to prevent it from being
             // disposed while the operation is processed on the QFT
@@ -291,9 +336,11 @@ final class OGLBlitLoops {
                         sx1, sy1, sx2, sy2,
                         dx1, dy1, dx2, dy2);
 
-            // always flush immediately, since we (currently) have no means
-            // of tracking changes to the system memory surface
-            rq.flushNow();
+            if (staged == null) {
+                // flush immediately, since we have no means of tracking
+                // changes to the system memory surface
+                rq.flushNow();
+            }
         } finally {
             rq.unlock();
         }
@@ -315,6 +362,17 @@ final class OGLBlitLoops {
                         double dx2, double dy2,
                         boolean texture)
     {
+        if (srcData instanceof OGLTextureAtlas.Region) {
+            // draw from the location of the region in its atlas page, so
+            // that consecutive draws from a page use the same texture
+            OGLTextureAtlas.Region r = (OGLTextureAtlas.Region)srcData;
+            sx1 += r.getX();
+            sy1 += r.getY();
+            sx2 += r.getX();
+            sy2 += r.getY();
+            srcData = r.getPage();
+        }
+
         int ctxflags = 0;
         if (srcData.getTransparency() == Transparency.OPAQUE) {
             ctxflags |= OGLContext.SRC_IS_OPAQUE;
@@ -366,11 +424,14 @@ final class OGLBlitLoops {
                 OGLBufImgOps.disableBufImgOp(rq, biop);
             }
 
-            if (rtt && oglDst.isOnScreen()) {
+            if (rtt && oglDst.isOnScreen() &&
+                OGLRenderQueue.getFlushPolicy().isFrameFlushEnabled())
+            {
                 // we only have to flush immediately when copying from a
                 // (non-texture) surface to the screen; otherwise Swing apps
                 // might appear unresponsive until the auto-flush completes
-                rq.flushNow();
+                // (there is no need to wait for the copy to complete though)
+                rq.flushNow(false);
             }
         } finally {
             rq.unlock();
@@ -520,7 +581,6 @@ class OGLRTTSurfaceToSurfaceTransform extends TransformBlit {
 final class OGLSurfaceToSwBlit extends Blit {
 
     private final int typeval;
-    private WeakReference<SurfaceData> srcTmp;
 
     // destination will actually be ArgbPre or Argb
     OGLSurfaceToSwBlit(final SurfaceType dstType,final int typeval) {
@@ -530,15 +590,10 @@ final class OGLSurfaceToSwBlit extends Blit {
         this.typeval = typeval;
     }
 
-    private synchronized void complexClipBlit(SurfaceData src, SurfaceData dst,
-                                              Composite comp, Region clip,
-                                              int sx, int sy, int dx, int dy,
-                                              int w, int h) {
-        SurfaceData cachedSrc = null;
-        if (srcTmp != null) {
-            // use cached intermediate surface, if available
-            cachedSrc = srcTmp.get();
-        }
+    private void complexClipBlit(SurfaceData src, SurfaceData dst,
+                                 Composite comp, Region clip,
+                                 int sx, int sy, int dx, int dy,
+                                 int w, int h) {
 
         // We can convert argb_pre data from OpenGL surface in two places:
         // - During OpenGL surface -> SW blit
@@ -551,17 +606,18 @@ final class OGLSurfaceToSwBlit extends Blit {
                          BufferedImage.TYPE_INT_ARGB_PRE :
                          BufferedImage.TYPE_INT_ARGB;
 
-        src = convertFrom(this, src, sx, sy, w, h, cachedSrc, type);
-
-        // copy intermediate SW to destination SW using complex clip
-        final Blit performop = Blit.getFromCache(src.getSurfaceType(),
-                                                 CompositeType.SrcNoEa,
-                                                 dst.getSurfaceType());
-        performop.Blit(src, dst, comp, clip, 0, 0, dx, dy, w, h);
+        // use a pooled intermediate surface
+        SurfaceData tmp = OGLSurfacePool.checkout(w, h, type);
+        try {
+            src = convertFrom(this, src, sx, sy, w, h, tmp, type);
 
-        if (src != cachedSrc) {
-            // cache the intermediate surface
-            srcTmp = new WeakReference<>(src);
+            // copy intermediate SW to destination SW using complex clip
+            final Blit performop = Blit.getFromCache(src.getSurfaceType(),
+                                                     CompositeType.SrcNoEa,
+                                                     dst.getSurfaceType());
+            performop.Blit(src, dst, comp, clip, 0, 0, dx, dy, w, h);
+        } finally {
+            OGLSurfacePool.checkin(tmp, type);
         }
     }
 
@@ -598,19 +654,12 @@ final class OGLSurfaceToSwBlit extends Blit {
             // disposed while the operation is processed on the QFT
             rq.addReference(dst);
 
-            RenderBuffer buf = rq.getBuffer();
             OGLContext.validateContext((OGLSurfaceData)src);
+            OGLBlitLoops.enqueueReadback(rq, src, dst, sx, sy, dx, dy,
+                                         w, h, typeval);
 
-            rq.ensureCapacityAndAlignment(48, 32);
-            buf.putInt(SURFACE_TO_SW_BLIT);
-            buf.putInt(sx).putInt(sy);
-            buf.putInt(dx).putInt(dy);
-            buf.putInt(w).putInt(h);
-            buf.putInt(typeval);
-            buf.putLong(src.getNativeOps());
-            buf.putLong(dst.getNativeOps());
-
-            // always flush immediately
+            // always flush immediately (see OGLReadback for the
+            // asynchronous variant)
             rq.flushNow();
         } finally {
             rq.unlock();
@@ -796,7 +845,6 @@ class OGLTextureToSurfaceTransform extends TransformBlit {
 class OGLGeneralBlit extends Blit {
 
     private final Blit performop;
-    private WeakReference<SurfaceData> srcTmp;
 
     OGLGeneralBlit(SurfaceType dstType,
                    CompositeType compType,
@@ -806,32 +854,28 @@ class OGLGeneralBlit extends Blit {
         this.performop = performop;
     }
 
-    public synchronized void Blit(SurfaceData src, SurfaceData dst,
-                                  Composite comp, Region clip,
-                                  int sx, int sy, int dx, int dy,
-                                  int w, int h)
+    public void Blit(SurfaceData src, SurfaceData dst,
+                     Composite comp, Region clip,
+                     int sx, int sy, int dx, int dy,
+                     int w, int h)
     {
         Blit convertsrc = Blit.getFromCache(src.getSurfaceType(),
                                             CompositeType.SrcNoEa,
                                             SurfaceType.IntArgbPre);
 
-        SurfaceData cachedSrc = null;
-        if (srcTmp != null) {
-            // use cached intermediate surface, if available
-            cachedSrc = srcTmp.get();
-        }
-
-        // convert source to IntArgbPre
-        src = convertFrom(convertsrc, src, sx, sy, w, h,
-                          cachedSrc, BufferedImage.TYPE_INT_ARGB_PRE);
-
-        // copy IntArgbPre intermediate surface to OpenGL surface
-        performop.Blit(src, dst, comp, clip,
-                       0, 0, dx, dy, w, h);
+        // use a pooled intermediate surface
+        SurfaceData tmp = OGLSurfacePool.checkout(w, h,
+                              BufferedImage.TYPE_INT_ARGB_PRE);
+        try {
+            // convert source to IntArgbPre
+            src = convertFrom(convertsrc, src, sx, sy, w, h,
+                              tmp, BufferedImage.TYPE_INT_ARGB_PRE);
 
-        if (src != cachedSrc) {
-            // cache the intermediate surface
-            srcTmp = new WeakReference<>(src);
+            // copy IntArgbPre intermediate surface to OpenGL surface
+            performop.Blit(src, dst, comp, clip,
+                           0, 0, dx, dy, w, h);
+        } finally {
+            OGLSurfacePool.checkin(tmp, BufferedImage.TYPE_INT_ARGB_PRE);
         }
     }
 }
@@ -845,7 +889,6 @@ class OGLGeneralBlit extends Blit {
 final class OGLGeneralTransformedBlit extends TransformBlit {
 
     private final TransformBlit performop;
-    private WeakReference<SurfaceData> srcTmp;
 
     OGLGeneralTransformedBlit(final TransformBlit performop) {
         super(SurfaceType.Any, CompositeType.AnyAlpha,
@@ -854,27 +897,27 @@ final class OGLGeneralTransformedBlit extends TransformBlit {
     }
 
     @Override
-    public synchronized void Transform(SurfaceData src, SurfaceData dst,
-                                       Composite comp, Region clip,
-                                       AffineTransform at, int hint, int srcx,
-                                       int srcy, int dstx, int dsty, int width,
-                                       int height){
+    public void Transform(SurfaceData src, SurfaceData dst,
+                          Composite comp, Region clip,
+                          AffineTransform at, int hint, int srcx,
+                          int srcy, int dstx, int dsty, int width,
+                          int height){
         Blit convertsrc = Blit.getFromCache(src.getSurfaceType(),
                                             CompositeType.SrcNoEa,
                                             SurfaceType.IntArgbPre);
-        // use cached intermediate surface, if available
-        final SurfaceData cachedSrc = srcTmp != null ? srcTmp.get() : null;
-        // convert source to IntArgbPre
-        src = convertFrom(convertsrc, src, srcx, srcy, width, height, cachedSrc,
-                          BufferedImage.TYPE_INT_ARGB_PRE);
-
-        // transform IntArgbPre intermediate surface to OpenGL surface
-        performop.Transform(src, dst, comp, clip, at, hint, 0, 0, dstx, dsty,
-                            width, height);
-
-        if (src != cachedSrc) {
-            // cache the intermediate surface
-            srcTmp = new WeakReference<>(src);
+        // use a pooled intermediate surface
+        final SurfaceData tmp = OGLSurfacePool.checkout(width, height,
+                                    BufferedImage.TYPE_INT_ARGB_PRE);
+        try {
+            // convert source to IntArgbPre
+            src = convertFrom(convertsrc, src, srcx, srcy, width, height, tmp,
+                              BufferedImage.TYPE_INT_ARGB_PRE);
+
+            // transform IntArgbPre intermediate surface to OpenGL surface
+            performop.Transform(src, dst, comp, clip, at, hint, 0, 0, dstx,
+                                dsty, width, height);
+        } finally {
+            OGLSurfacePool.checkin(tmp, BufferedImage.TYPE_INT_ARGB_PRE);
         }
     }
 }
@@ -887,8 +930,6 @@ final class OGLGeneralTransformedBlit extends TransformBlit {
  */
 final class OGLAnyCompositeBlit extends Blit {
 
-    private WeakReference<SurfaceData> dstTmp;
-    private WeakReference<SurfaceData> srcTmp;
     private final Blit convertsrc;
     private final Blit convertdst;
     private final Blit convertresult;
@@ -901,49 +942,42 @@ final class OGLAnyCompositeBlit extends Blit {
         this.convertresult = convertresult;
     }
 
-    public synchronized void Blit(SurfaceData src, SurfaceData dst,
-                                  Composite comp, Region clip,
-                                  int sx, int sy, int dx, int dy,
-                                  int w, int h)
+    public void Blit(SurfaceData src, SurfaceData dst,
+                     Composite comp, Region clip,
+                     int sx, int sy, int dx, int dy,
+                     int w, int h)
     {
-        if (convertsrc != null) {
-            SurfaceData cachedSrc = null;
-            if (srcTmp != null) {
-                // use cached intermediate surface, if available
-                cachedSrc = srcTmp.get();
-            }
-            // convert source to IntArgbPre
-            src = convertFrom(convertsrc, src, sx, sy, w, h, cachedSrc,
-                              BufferedImage.TYPE_INT_ARGB_PRE);
-            if (src != cachedSrc) {
-                // cache the intermediate surface
-                srcTmp = new WeakReference<>(src);
+        // use pooled intermediate surfaces
+        SurfaceData srcTmp = null;
+        SurfaceData dstTmp = OGLSurfacePool.checkout(w, h,
+                                 BufferedImage.TYPE_INT_ARGB_PRE);
+        try {
+            if (convertsrc != null) {
+                srcTmp = OGLSurfacePool.checkout(w, h,
+                             BufferedImage.TYPE_INT_ARGB_PRE);
+                // convert source to IntArgbPre
+                src = convertFrom(convertsrc, src, sx, sy, w, h, srcTmp,
+                                  BufferedImage.TYPE_INT_ARGB_PRE);
             }
-        }
-
-        SurfaceData cachedDst = null;
-
-        if (dstTmp != null) {
-            // use cached intermediate surface, if available
-            cachedDst = dstTmp.get();
-        }
 
-        // convert destination to IntArgbPre
-        SurfaceData dstBuffer = convertFrom(convertdst, dst, dx, dy, w, h,
-                          cachedDst, BufferedImage.TYPE_INT_ARGB_PRE);
-        Region bufferClip =
-                clip == null ? null : clip.getTranslatedRegion(-dx, -dy);
+            // convert destination to IntArgbPre
+            SurfaceData dstBuffer = convertFrom(convertdst, dst, dx, dy, w, h,
+                              dstTmp, BufferedImage.TYPE_INT_ARGB_PRE);
+            Region bufferClip =
+                    clip == null ? null : clip.getTranslatedRegion(-dx, -dy);
 
-        Blit performop = Blit.getFromCache(src.getSurfaceType(),
-                CompositeType.Any, dstBuffer.getSurfaceType());
-        performop.Blit(src, dstBuffer, comp, bufferClip, sx, sy, 0, 0, w, h);
+            Blit performop = Blit.getFromCache(src.getSurfaceType(),
+                    CompositeType.Any, dstBuffer.getSurfaceType());
+            performop.Blit(src, dstBuffer, comp, bufferClip, sx, sy, 0, 0, w, h);
 
-        if (dstBuffer != cachedDst) {
-            // cache the intermediate surface
-            dstTmp = new WeakReference<>(dstBuffer);
+            // now blit the buffer back to the destination
+            convertresult.Blit(dstBuffer, dst, AlphaComposite.Src, clip, 0, 0, dx,
+                               dy, w, h);
+        } finally {
+            if (srcTmp != null) {
+                OGLSurfacePool.checkin(srcTmp, BufferedImage.TYPE_INT_ARGB_PRE);
+            }
+            OGLSurfacePool.checkin(dstTmp, BufferedImage.TYPE_INT_ARGB_PRE);
         }
-        // now blit the buffer back to the destination
-        convertresult.Blit(dstBuffer, dst, AlphaComposite.Src, clip, 0, 0, dx,
-                           dy, w, h);
     }
 }
@@ -25,12 +25,22 @@
 
 package sun.java2d.opengl;
 
+import java.awt.AlphaComposite;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
+import java.awt.image.ByteLookupTable;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ColorModel;
 import java.awt.image.ConvolveOp;
 import java.awt.image.LookupOp;
 import java.awt.image.RescaleOp;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
 import sun.java2d.SunGraphics2D;
 import sun.java2d.SurfaceData;
 import sun.java2d.loops.CompositeType;
@@ -50,43 +60,170 @@ class OGLBufImgOps extends BufferedBufImgOps {
     static boolean renderImageWithOp(SunGraphics2D sg, BufferedImage img,
                                      BufferedImageOp biop, int x, int y)
     {
+        // Substitute an equivalent op that can be accelerated, if any
+        biop = getAcceleratedOp(biop, img);
+
         // Validate the provided BufferedImage (make sure it is one that
         // is supported, and that its properties are acceleratable)
-        if (biop instanceof ConvolveOp) {
-            if (!isConvolveOpValid((ConvolveOp)biop)) {
+        if (!isOpValid(biop, img)) {
+            return false;
+        }
+
+        SurfaceData srcData = getSourceTexture(sg, img);
+        if (srcData == null) {
+            return false;
+        }
+
+        int sw = img.getWidth();
+        int sh = img.getHeight();
+        OGLBlitLoops.IsoBlit(srcData, sg.surfaceData,
+                             img, biop,
+                             sg.composite, sg.getCompClip(),
+                             sg.transform, sg.interpolationType,
+                             0, 0, sw, sh,
+                             x, y, x+sw, y+sh,
+                             true);
+
+        return true;
+    }
+
+    /**
+     * Renders the given BufferedImage to the destination through the given
+     * chain of BufferedImageOps, applied in order.  The intermediate
+     * results are rendered to pooled render-to-texture (FBO) surfaces of
+     * the size of the image, so that only the last op touches the
+     * destination, and no intermediate result is read back.  If any op of
+     * the chain cannot be accelerated, or if the intermediate surfaces
+     * cannot be created, nothing is rendered and this method returns
+     * false; otherwise, returns true.
+     */
+    static boolean renderImageWithOps(SunGraphics2D sg, BufferedImage img,
+                                      BufferedImageOp[] ops, int x, int y)
+    {
+        if (ops.length == 1) {
+            return renderImageWithOp(sg, img, ops[0], x, y);
+        }
+        ops = ops.clone();
+        for (int i = 0; i < ops.length; i++) {
+            // the first op reads the image, the next ones read the
+            // (premultiplied) intermediate results
+            BufferedImage src = (i == 0) ? img : INTERMEDIATE_IMAGE;
+            ops[i] = getAcceleratedOp(ops[i], src);
+            if (!isOpValid(ops[i], src)) {
                 return false;
             }
-        } else if (biop instanceof RescaleOp) {
-            if (!isRescaleOpValid((RescaleOp)biop, img)) {
-                return false;
+        }
+
+        SurfaceData srcData = getSourceTexture(sg, img);
+        if (srcData == null) {
+            return false;
+        }
+
+        int sw = img.getWidth();
+        int sh = img.getHeight();
+        OGLGraphicsConfig gc =
+            ((OGLSurfaceData)srcData).getOGLGraphicsConfig();
+        int count = Math.min(ops.length - 1, 2);
+        VolatileImage[] targets = new VolatileImage[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                targets[i] = acquireTarget(gc, sw, sh);
+                if (targets[i] == null) {
+                    return false;
+                }
             }
-        } else if (biop instanceof LookupOp) {
-            if (!isLookupOpValid((LookupOp)biop, img)) {
-                return false;
+
+            OGLRenderQueue rq = OGLRenderQueue.getInstance();
+            rq.lock();
+            try {
+                // ping-pong between the intermediate surfaces
+                SurfaceData stageSrc = srcData;
+                BufferedImage stageImg = img;
+                for (int i = 0; i < ops.length - 1; i++) {
+                    SurfaceData stageDst =
+                        SurfaceData.getPrimarySurfaceData(targets[i % count]);
+                    OGLBlitLoops.IsoBlit(stageSrc, stageDst,
+                                         stageImg, ops[i],
+                                         AlphaComposite.Src, null,
+                                         null,
+                                         AffineTransformOp.TYPE_NEAREST_NEIGHBOR,
+                                         0, 0, sw, sh,
+                                         0, 0, sw, sh,
+                                         true);
+                    stageSrc = stageDst;
+                    stageImg = INTERMEDIATE_IMAGE;
+                }
+                OGLBlitLoops.IsoBlit(stageSrc, sg.surfaceData,
+                                     stageImg, ops[ops.length - 1],
+                                     sg.composite, sg.getCompClip(),
+                                     sg.transform, sg.interpolationType,
+                                     0, 0, sw, sh,
+                                     x, y, x+sw, y+sh,
+                                     true);
+            } finally {
+                rq.unlock();
             }
+        } finally {
+            // the surfaces stay reachable (pooled) while the operations
+            // using them are processed
+            for (VolatileImage target : targets) {
+                if (target != null) {
+                    releaseTarget(target);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the given op can be accelerated for the given source
+     * image.
+     */
+    private static boolean isOpValid(BufferedImageOp biop, BufferedImage img)
+    {
+        if (biop instanceof ConvolveOp) {
+            return isConvolveOpValid((ConvolveOp)biop);
+        } else if (biop instanceof RescaleOp) {
+            return isRescaleOpValid((RescaleOp)biop, img);
+        } else if (biop instanceof LookupOp) {
+            return isLookupOpValid((LookupOp)biop, img);
         } else {
             // No acceleration for other BufferedImageOps (yet)
             return false;
         }
+    }
 
+    /**
+     * Returns the texture caching the given image, if the image can be
+     * rendered with an op to the destination of the given SunGraphics2D;
+     * otherwise returns null.
+     */
+    private static SurfaceData getSourceTexture(SunGraphics2D sg,
+                                                BufferedImage img)
+    {
         SurfaceData dstData = sg.surfaceData;
         if (!(dstData instanceof OGLSurfaceData) ||
             (sg.interpolationType == AffineTransformOp.TYPE_BICUBIC) ||
             (sg.compositeState > SunGraphics2D.COMP_ALPHA))
         {
-            return false;
+            return null;
         }
 
+        // the ops sample past the edges of the image, so the image must
+        // not be cached in the texture atlas
         SurfaceData srcData =
-            dstData.getSourceSurfaceData(img, SunGraphics2D.TRANSFORM_ISIDENT,
-                                         CompositeType.SrcOver, null);
+            OGLTextureAtlas.getTextureSource(dstData, img,
+                                             SunGraphics2D.TRANSFORM_ISIDENT,
+                                             CompositeType.SrcOver);
         if (!(srcData instanceof OGLSurfaceData)) {
             // REMIND: this hack tries to ensure that we have a cached texture
             srcData =
-                dstData.getSourceSurfaceData(img, SunGraphics2D.TRANSFORM_ISIDENT,
-                                             CompositeType.SrcOver, null);
+                OGLTextureAtlas.getTextureSource(dstData, img,
+                                                 SunGraphics2D.TRANSFORM_ISIDENT,
+                                                 CompositeType.SrcOver);
             if (!(srcData instanceof OGLSurfaceData)) {
-                return false;
+                return null;
             }
         }
 
@@ -97,19 +234,189 @@ class OGLBufImgOps extends BufferedBufImgOps {
         if (oglSrc.getType() != OGLSurfaceData.TEXTURE ||
             !gc.isCapPresent(CAPS_EXT_BIOP_SHADER))
         {
-            return false;
+            return null;
         }
 
-        int sw = img.getWidth();
-        int sh = img.getHeight();
-        OGLBlitLoops.IsoBlit(srcData, dstData,
-                             img, biop,
-                             sg.composite, sg.getCompClip(),
-                             sg.transform, sg.interpolationType,
-                             0, 0, sw, sh,
-                             x, y, x+sw, y+sh,
-                             true);
+        return srcData;
+    }
+
+    /**
+     * Describes the intermediate (IntArgbPre) results of an op chain to
+     * the op validation and setup code, which only use its ColorModel.
+     */
+    private static final BufferedImage INTERMEDIATE_IMAGE =
+        new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+
+    /** The maximum number of pooled intermediate surfaces. */
+    private static final int MAX_POOLED_TARGETS = 4;
+
+    /** The pooled intermediate surfaces, most recently used last. */
+    private static final ArrayList<VolatileImage> pooledTargets =
+        new ArrayList<VolatileImage>();
+
+    /**
+     * Returns a render-to-texture surface of exactly w x h pixels (so that
+     * the edges of the convolutions match those of the image), reusing a
+     * pooled one if possible, or null if it cannot be created.
+     */
+    private static VolatileImage acquireTarget(OGLGraphicsConfig gc,
+                                               int w, int h)
+    {
+        GraphicsConfiguration config = (GraphicsConfiguration)gc;
+        synchronized (pooledTargets) {
+            for (int i = pooledTargets.size() - 1; i >= 0; i--) {
+                VolatileImage vi = pooledTargets.get(i);
+                if (vi.getWidth() == w && vi.getHeight() == h &&
+                    vi.validate(config) != VolatileImage.IMAGE_INCOMPATIBLE)
+                {
+                    // the previous contents do not matter, since each
+                    // stage overwrites the whole surface
+                    pooledTargets.remove(i);
+                    return vi;
+                }
+            }
+        }
+        VolatileImage vi =
+            gc.createCompatibleVolatileImage(w, h, Transparency.TRANSLUCENT,
+                                             OGLSurfaceData.FBOBJECT);
+        if (vi == null ||
+            !(SurfaceData.getPrimarySurfaceData(vi) instanceof OGLSurfaceData))
+        {
+            return null;
+        }
+        return vi;
+    }
+
+    private static void releaseTarget(VolatileImage vi) {
+        VolatileImage evicted = null;
+        synchronized (pooledTargets) {
+            pooledTargets.add(vi);
+            if (pooledTargets.size() > MAX_POOLED_TARGETS) {
+                evicted = pooledTargets.remove(0);
+            }
+        }
+        if (evicted != null) {
+            // released along with the operations enqueued before
+            evicted.flush();
+        }
+    }
+
+    /**
+     * The ops substituted for the ColorConvertOps, or NO_LOOKUP if an op
+     * cannot be expressed as a lookup.
+     */
+    private static final Map<ColorConvertOp, LookupOp> colorConvertOps =
+        new WeakHashMap<ColorConvertOp, LookupOp>();
+    private static final LookupOp NO_LOOKUP =
+        new LookupOp(new ByteLookupTable(0, new byte[256]), null);
+
+    /**
+     * Returns an op equivalent to the given one (for the given source
+     * image) that can be accelerated, or the given op itself: a
+     * ColorConvertOp on an sRGB image whose result (as drawn) only depends
+     * on each color component separately (e.g. a conversion between the
+     * sRGB and linear RGB color spaces) is replaced with the corresponding
+     * LookupOp.
+     *
+     * Note that a ConvolveOp is never substituted: the border left to the
+     * edge condition spans the width and height of the kernel (on each
+     * side of its origin), so a kernel padded to 3x3 or 5x5 would not
+     * produce the same border as ConvolveOp.filter().
+     */
+    static BufferedImageOp getAcceleratedOp(BufferedImageOp biop,
+                                            BufferedImage img)
+    {
+        if (biop instanceof ColorConvertOp) {
+            LookupOp lop = getLookupOp((ColorConvertOp)biop, img);
+            if (lop != null) {
+                return lop;
+            }
+        }
+        return biop;
+    }
+
+    /**
+     * Returns the LookupOp equivalent to the given ColorConvertOp for the
+     * given source image, or null if there is none.  The lookup tables
+     * are derived (once per op) by converting ramps of each color
+     * component with the op itself, so they match the software path.
+     */
+    private static LookupOp getLookupOp(ColorConvertOp ccop,
+                                        BufferedImage img)
+    {
+        ColorModel cm = img.getColorModel();
+        if (!cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied()) {
+            return null;
+        }
+        LookupOp lop;
+        synchronized (colorConvertOps) {
+            lop = colorConvertOps.get(ccop);
+        }
+        if (lop == null) {
+            lop = createLookupOp(ccop);
+            synchronized (colorConvertOps) {
+                colorConvertOps.put(ccop, lop);
+            }
+        }
+        return (lop != NO_LOOKUP) ? lop : null;
+    }
+
+    private static LookupOp createLookupOp(ColorConvertOp ccop) {
+        // one ramp per color component, and a gray ramp
+        BufferedImage ramps =
+            new BufferedImage(256, 4, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 256; i++) {
+            ramps.setRGB(i, 0, i << 16);
+            ramps.setRGB(i, 1, i << 8);
+            ramps.setRGB(i, 2, i);
+            ramps.setRGB(i, 3, (i << 16) | (i << 8) | i);
+        }
+        BufferedImage result;
+        try {
+            result = ccop.filter(ramps, null);
+        } catch (RuntimeException e) {
+            return NO_LOOKUP;
+        }
+
+        byte[][] tables = new byte[3][256];
+        int black = result.getRGB(0, 3);
+        for (int i = 0; i < 256; i++) {
+            int r = result.getRGB(i, 0);
+            int g = result.getRGB(i, 1);
+            int b = result.getRGB(i, 2);
+            int gray = result.getRGB(i, 3);
+            // each component must only depend on itself
+            if (!isSameComponents(r, black, 0x00ffff) ||
+                !isSameComponents(g, black, 0xff00ff) ||
+                !isSameComponents(b, black, 0xffff00) ||
+                !isSameComponents(gray, (r & 0xff0000) |
+                                        (g & 0x00ff00) |
+                                        (b & 0x0000ff), 0xffffff))
+            {
+                return NO_LOOKUP;
+            }
+            tables[0][i] = (byte)(r >> 16);
+            tables[1][i] = (byte)(g >> 8);
+            tables[2][i] = (byte)b;
+        }
+        return new LookupOp(new ByteLookupTable(0, tables),
+                            ccop.getRenderingHints());
+    }
 
+    /**
+     * Returns true if the given components of the two RGB values differ
+     * by at most one (rounding differences of the conversions).
+     */
+    private static boolean isSameComponents(int rgb1, int rgb2, int mask) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            if (((mask >> shift) & 0xff) != 0) {
+                int c1 = (rgb1 >> shift) & 0xff;
+                int c2 = (rgb2 >> shift) & 0xff;
+                if (Math.abs(c1 - c2) > 1) {
+                    return false;
+                }
+            }
+        }
         return true;
     }
 }
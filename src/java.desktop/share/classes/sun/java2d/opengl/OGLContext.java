@@ -42,6 +42,9 @@ public class OGLContext extends BufferedContext {
 
     private final OGLGraphicsConfig config;
 
+    /** The depth of the native state stack (see saveState()). */
+    private int stateDepth;
+
     OGLContext(RenderQueue rq, OGLGraphicsConfig config) {
         super(rq);
         this.config = config;
@@ -93,6 +96,16 @@ public class OGLContext extends BufferedContext {
      * surface).
      */
     static void invalidateCurrentContext() {
+        invalidateCurrentContext(true);
+    }
+
+    /**
+     * Same as invalidateCurrentContext(), except that the queue is only
+     * flushed if sync is true.  Otherwise, the native context reference is
+     * invalidated in order with the other queued operations, which is
+     * enough when the caller does not use the context itself.
+     */
+    static void invalidateCurrentContext(boolean sync) {
         // assert OGLRenderQueue.getInstance().lock.isHeldByCurrentThread();
 
         // invalidate the current Java-level context so that we
@@ -108,7 +121,9 @@ public class OGLContext extends BufferedContext {
         OGLRenderQueue rq = OGLRenderQueue.getInstance();
         rq.ensureCapacity(4);
         rq.getBuffer().putInt(INVALIDATE_CONTEXT);
-        rq.flushNow();
+        if (sync) {
+            rq.flushNow();
+        }
     }
 
     public RenderQueue getRenderQueue() {
@@ -123,36 +138,52 @@ public class OGLContext extends BufferedContext {
      */
     static final native String getOGLIdString();
 
+    /**
+     * Pushes the native context state on the native state stack.  The
+     * SAVE_STATE and RESTORE_STATE operations are processed in order with
+     * the other queued operations, so nested save/restore pairs do not
+     * need to flush the queue.  The Java-level state is still invalidated
+     * (without flushing the queue), since the native stack does not cover
+     * the bound framebuffer and shader program.
+     */
     @Override
     public void saveState() {
         // assert rq.lock.isHeldByCurrentThread();
 
         // reset all attributes of this and current contexts
         invalidateContext();
-        invalidateCurrentContext();
+        invalidateCurrentContext(false);
 
         setScratchSurface(config);
 
         // save the state on the native level
         rq.ensureCapacity(4);
         buf.putInt(SAVE_STATE);
-        rq.flushNow();
+        stateDepth++;
     }
 
+    /**
+     * Pops the native context state saved by the matching saveState() call
+     * (see saveState()).
+     */
     @Override
     public void restoreState() {
         // assert rq.lock.isHeldByCurrentThread();
+        if (stateDepth == 0) {
+            throw new IllegalStateException("restoreState() without " +
+                                            "matching saveState()");
+        }
 
         // reset all attributes of this and current contexts
         invalidateContext();
-        invalidateCurrentContext();
+        invalidateCurrentContext(false);
 
         setScratchSurface(config);
 
         // restore the state on the native level
         rq.ensureCapacity(4);
         buf.putInt(RESTORE_STATE);
-        rq.flushNow();
+        stateDepth--;
     }
 
     static class OGLContextCaps extends ContextCapabilities {
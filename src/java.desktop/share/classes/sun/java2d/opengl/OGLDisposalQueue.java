@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.awt.Rectangle;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import sun.java2d.pipe.RenderBuffer;
+import static sun.java2d.pipe.BufferedOpCodes.*;
+
+/**
+ * Accumulates the deferred release of native OpenGL resources, namely the
+ * FLUSH_SURFACE requests of OGLSurfaceData.flush() and the DISPOSE_CONFIG
+ * requests of OGLRenderQueue.disposeGraphicsConfig(), so that they do not
+ * force a synchronous flush each.  The requests are recorded without
+ * holding the queue lock, and emitted by the next outermost lock() (see
+ * OGLRenderQueue.queueLocked()) or automatic flush of the OGLRenderQueue,
+ * i.e. between two operations: they are never emitted by flushNow(), which
+ * may happen once the caller has validated its context (e.g. in the middle
+ * of a glyph list).
+ * The scratch context is only made current again when the GraphicsConfig
+ * changes from one surface to the next.  The QueueFlusher also flushes
+ * the queue once the oldest request has been waiting for MAX_DELAY
+ * milliseconds, and the pending requests are flushed right away once the
+ * (estimated) video memory held by the pending surfaces exceeds
+ * MAX_BYTES.
+ *
+ * DISPOSE_SURFACE requests cannot be deferred: the native SurfaceDataOps
+ * structure is freed by the Disposer as soon as OGLSurfaceData.dispose()
+ * returns.  They still flush the pending requests along with them.
+ */
+final class OGLDisposalQueue {
+
+    /** The maximum delay (in milliseconds) of a pending request. */
+    static final long MAX_DELAY = 100L;
+
+    /** The maximum video memory (in bytes) held by pending requests. */
+    static final long MAX_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * The surfaces to flush, kept reachable so that their native resources
+     * are not disposed before they are flushed, and the GraphicsConfig
+     * infos to dispose.
+     */
+    private ArrayList<OGLSurfaceData> surfaces =
+        new ArrayList<OGLSurfaceData>();
+    private long[] configs = new long[16];
+    private int configCount;
+    private long pendingBytes;
+    private long pendingSince;
+
+    // statistics
+    private long deferredFlushes, deferredConfigs, emissions, forcedEmissions;
+
+    /**
+     * Records the release of the native resources of the given surface.
+     * Returns true if the caller must flush the queue, as the pending
+     * surfaces exceed the memory budget.
+     */
+    synchronized boolean flushSurface(OGLSurfaceData sd) {
+        if (surfaces.isEmpty() && configCount == 0) {
+            pendingSince = System.nanoTime();
+        }
+        surfaces.add(sd);
+        Rectangle r = sd.getBounds();
+        pendingBytes += 4L * r.width * r.height;
+        deferredFlushes++;
+        if (pendingBytes > MAX_BYTES) {
+            forcedEmissions++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the disposal of the given native GraphicsConfig info.
+     */
+    synchronized void disposeConfig(long pConfigInfo) {
+        if (surfaces.isEmpty() && configCount == 0) {
+            pendingSince = System.nanoTime();
+        }
+        if (configCount == configs.length) {
+            long[] newConfigs = new long[configCount * 2];
+            System.arraycopy(configs, 0, newConfigs, 0, configCount);
+            configs = newConfigs;
+        }
+        configs[configCount++] = pConfigInfo;
+        deferredConfigs++;
+    }
+
+    /**
+     * Returns true if some requests are pending.  This value may be read
+     * without synchronization, as a hint.
+     */
+    boolean hasPending() {
+        return pendingSince != 0L;
+    }
+
+    /**
+     * Returns true if the oldest pending request has waited too long.
+     */
+    boolean isDue() {
+        long since = pendingSince;
+        return since != 0L &&
+               (System.nanoTime() - since) / 1000000L >= MAX_DELAY;
+    }
+
+    /**
+     * Enqueues the pending requests on the given queue, whose lock must be
+     * held by the current thread.  The requests are taken out before being
+     * enqueued, so this method is a no-op if it is reentered because the
+     * queue has to be flushed to make room.
+     */
+    void emit(OGLRenderQueue rq) {
+        // assert rq.lock.isHeldByCurrentThread();
+        ArrayList<OGLSurfaceData> toFlush;
+        long[] toDispose;
+        synchronized (this) {
+            if (pendingSince == 0L) {
+                return;
+            }
+            toFlush = surfaces;
+            surfaces = new ArrayList<OGLSurfaceData>();
+            toDispose = new long[configCount];
+            System.arraycopy(configs, 0, toDispose, 0, configCount);
+            configCount = 0;
+            pendingBytes = 0L;
+            pendingSince = 0L;
+            emissions++;
+        }
+
+        RenderBuffer buf = rq.getBuffer();
+        long scratch = 0L;
+        for (int i = 0; i < toFlush.size(); i++) {
+            OGLSurfaceData sd = toFlush.get(i);
+            long pConfigInfo =
+                sd.getOGLGraphicsConfig().getNativeConfigInfo();
+            if (pConfigInfo != scratch) {
+                // make sure we have a current context before
+                // disposing the native resources (e.g. texture object)
+                OGLContext.setScratchSurface(pConfigInfo);
+                scratch = pConfigInfo;
+            }
+            rq.ensureCapacityAndAlignment(12, 4);
+            // keep the surface reachable until the request is processed
+            rq.addReference(sd);
+            buf.putInt(FLUSH_SURFACE);
+            buf.putLong(sd.getNativeOps());
+        }
+
+        for (long pConfigInfo : toDispose) {
+            // make sure we make the context associated with the given
+            // GraphicsConfig current before disposing the native resources
+            OGLContext.setScratchSurface(pConfigInfo);
+            rq.ensureCapacityAndAlignment(12, 4);
+            buf.putInt(DISPOSE_CONFIG);
+            buf.putLong(pConfigInfo);
+        }
+    }
+
+    synchronized void dump(PrintStream ps, String name) {
+        ps.println("Disposal queue for " + name + ":");
+        ps.println("  deferred surface flushes=" + deferredFlushes +
+                   " deferred config disposals=" + deferredConfigs +
+                   " emissions=" + emissions +
+                   " forced emissions=" + forcedEmissions);
+    }
+}
@@ -67,6 +67,8 @@ public class OGLDrawImage extends DrawImage {
             if (srcData != null &&
                 !isBgOperation(srcData, bgColor) &&
                 (srcData.getSurfaceType() == OGLSurfaceData.OpenGLTexture ||
+                 srcData.getSurfaceType() ==
+                     OGLTextureAtlas.OpenGLAtlasTexture ||
                  srcData.getSurfaceType() == OGLSurfaceData.OpenGLSurfaceRTT ||
                  interpType == AffineTransformOp.TYPE_NEAREST_NEIGHBOR))
             {
@@ -35,6 +35,7 @@ import java.awt.TexturePaint;
 import java.awt.image.BufferedImage;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 import sun.java2d.SunGraphics2D;
 import sun.java2d.SurfaceData;
 import sun.java2d.loops.CompositeType;
@@ -122,18 +123,20 @@ abstract class OGLPaints {
                 }
             }
 
+            // the paint repeats the whole texture, so the image must not
+            // be cached in the texture atlas
             SurfaceData srcData =
-                dstData.getSourceSurfaceData(bi,
-                                             SunGraphics2D.TRANSFORM_ISIDENT,
-                                             CompositeType.SrcOver, null);
+                OGLTextureAtlas.getTextureSource(dstData, bi,
+                                                 SunGraphics2D.TRANSFORM_ISIDENT,
+                                                 CompositeType.SrcOver);
             if (!(srcData instanceof OGLSurfaceData)) {
                 // REMIND: this is a hack that attempts to cache the system
                 //         memory image from the TexturePaint instance into an
                 //         OpenGL texture...
                 srcData =
-                    dstData.getSourceSurfaceData(bi,
-                                                 SunGraphics2D.TRANSFORM_ISIDENT,
-                                                 CompositeType.SrcOver, null);
+                    OGLTextureAtlas.getTextureSource(dstData, bi,
+                                                     SunGraphics2D.TRANSFORM_ISIDENT,
+                                                     CompositeType.SrcOver);
                 if (!(srcData instanceof OGLSurfaceData)) {
                     return false;
                 }
@@ -154,6 +157,56 @@ abstract class OGLPaints {
     private abstract static class MultiGradient extends OGLPaints {
         protected MultiGradient() {}
 
+        /** A gradient and its number of stops. */
+        private static final class Stops {
+            final MultipleGradientPaint paint;
+            final int count;
+
+            Stops(MultipleGradientPaint paint, int count) {
+                this.paint = paint;
+                this.count = count;
+            }
+        }
+
+        /**
+         * The last validated gradient (the most common case), checked
+         * without locking.
+         */
+        private static volatile Stops lastStops;
+
+        /**
+         * The number of stops of the gradients validated so far, so that
+         * the fractions are not cloned each time a gradient is validated
+         * again.  MultipleGradientPaint instances are immutable and only
+         * equal to themselves, so they are used as (weak) keys directly.
+         */
+        private static final Map<MultipleGradientPaint, Integer> numStops =
+            new WeakHashMap<MultipleGradientPaint, Integer>();
+
+        /**
+         * Returns the number of gradient "stops" of the given paint.
+         */
+        static int getNumStops(MultipleGradientPaint paint) {
+            Stops last = lastStops;
+            if (last != null && last.paint == paint) {
+                return last.count;
+            }
+            Integer n;
+            synchronized (numStops) {
+                n = numStops.get(paint);
+            }
+            if (n == null) {
+                // REMIND: ugh, this creates garbage; would be nicer if
+                // we had a MultipleGradientPaint.getNumStops() method...
+                n = paint.getFractions().length;
+                synchronized (numStops) {
+                    numStops.put(paint, n);
+                }
+            }
+            lastStops = new Stops(paint, n);
+            return n;
+        }
+
         /**
          * Returns true if the given MultipleGradientPaint instance can be
          * used by the accelerated OGLPaints.MultiGradient implementation.
@@ -165,9 +218,7 @@ abstract class OGLPaints {
         @Override
         boolean isPaintValid(SunGraphics2D sg2d) {
             MultipleGradientPaint paint = (MultipleGradientPaint)sg2d.paint;
-            // REMIND: ugh, this creates garbage; would be nicer if
-            // we had a MultipleGradientPaint.getNumStops() method...
-            if (paint.getFractions().length > MULTI_MAX_FRACTIONS) {
+            if (getNumStops(paint) > MULTI_MAX_FRACTIONS) {
                 return false;
             }
 
@@ -190,7 +241,7 @@ abstract class OGLPaints {
         boolean isPaintValid(SunGraphics2D sg2d) {
             LinearGradientPaint paint = (LinearGradientPaint)sg2d.paint;
 
-            if (paint.getFractions().length == 2 &&
+            if (getNumStops(paint) == 2 &&
                 paint.getCycleMethod() != CycleMethod.REPEAT &&
                 paint.getColorSpace() != ColorSpaceType.LINEAR_RGB)
             {
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import sun.awt.image.BufImgSurfaceData;
+import sun.java2d.SurfaceData;
+
+/**
+ * Asynchronous readback of OpenGL surfaces.  Unlike OGLSurfaceToSwBlit,
+ * which flushes the queue synchronously, a readback request only enqueues
+ * a SURFACE_TO_SW_BLIT operation into a staging buffer and returns a
+ * Request (a Future of the pixels); the caller may continue to enqueue
+ * operations, and collect the pixels later.  Request.get() only flushes
+ * the queue if the operation has not been processed yet (e.g. by an
+ * automatic flush).  The bulk variant of read() reads many regions with
+ * a single context validation, and a single flush when collected.
+ *
+ * The staging buffers (IntArgbPre images) form a ring of RING_SIZE slots.
+ * Once a readback operation has been processed, its pixels are copied out
+ * of the slot, which is reused right away, whether the request is ever
+ * collected or not; if all the slots are in use, a temporary staging
+ * buffer is allocated.
+ */
+final class OGLReadback implements OGLRenderQueue.BatchListener {
+
+    /** The number of pooled staging buffers. */
+    static final int RING_SIZE = 8;
+
+    /** A staging buffer. */
+    private static final class Slot {
+        BufferedImage image;
+        SurfaceData sd;
+        boolean busy;
+
+        void ensureSize(int w, int h) {
+            if (image == null || image.getWidth() < w ||
+                image.getHeight() < h)
+            {
+                if (image != null) {
+                    w = Math.max(w, image.getWidth());
+                    h = Math.max(h, image.getHeight());
+                }
+                image = new BufferedImage(w, h,
+                                          BufferedImage.TYPE_INT_ARGB_PRE);
+                sd = BufImgSurfaceData.createData(image);
+            }
+        }
+
+        /**
+         * Copies the w x h pixels read back at the origin of the staging
+         * buffer to a new image.
+         */
+        BufferedImage copy(int w, int h) {
+            BufferedImage dst =
+                new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            int[] srcPixels =
+                ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            int[] dstPixels =
+                ((DataBufferInt)dst.getRaster().getDataBuffer()).getData();
+            int scan = image.getWidth();
+            for (int y = 0; y < h; y++) {
+                System.arraycopy(srcPixels, y * scan, dstPixels, y * w, w);
+            }
+            return dst;
+        }
+    }
+
+    /**
+     * The handle of an asynchronous readback, whose result is an IntArgbPre
+     * image holding the pixels of the requested region.
+     */
+    static final class Request implements Future<BufferedImage> {
+        private final OGLReadback readback;
+        private Slot slot;
+        private final int w, h;
+        private boolean done;
+        private BufferedImage result;
+
+        Request(OGLReadback readback, Slot slot, int w, int h) {
+            this.readback = readback;
+            this.slot = slot;
+            this.w = w;
+            this.h = h;
+        }
+
+        /**
+         * Invoked once the readback operation has been processed: copies
+         * the pixels out of the staging buffer, and releases its slot.
+         */
+        synchronized void complete() {
+            result = slot.copy(w, h);
+            readback.release(slot);
+            slot = null;
+            done = true;
+            notifyAll();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // the operation may already have been processed
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the pixels, flushing the queue first if the readback
+         * operation has not been processed yet.
+         */
+        @Override
+        public BufferedImage get() {
+            if (!isDone()) {
+                OGLRenderQueue rq = OGLRenderQueue.getInstance();
+                rq.lock();
+                try {
+                    if (!isDone()) {
+                        rq.flushNow();
+                    }
+                } finally {
+                    rq.unlock();
+                }
+            }
+            return getResult();
+        }
+
+        /**
+         * Waits for the readback operation to be processed (without
+         * flushing the queue), and returns the pixels.
+         */
+        @Override
+        public BufferedImage get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (!done) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return getResult();
+        }
+
+        private synchronized BufferedImage getResult() {
+            return result;
+        }
+    }
+
+    private final Slot[] ring = new Slot[RING_SIZE];
+    private int next;
+
+    /** The requests enqueued in the pending operations. */
+    private final ArrayList<Request> pending = new ArrayList<Request>();
+
+    OGLReadback() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Slot();
+        }
+    }
+
+    private synchronized Slot acquire(int w, int h) {
+        Slot slot = null;
+        for (int i = 0; i < RING_SIZE; i++) {
+            Slot s = ring[(next + i) % RING_SIZE];
+            if (!s.busy) {
+                slot = s;
+                next = (next + i + 1) % RING_SIZE;
+                break;
+            }
+        }
+        if (slot == null) {
+            // all the staging buffers are in use
+            slot = new Slot();
+        }
+        slot.ensureSize(w, h);
+        slot.busy = true;
+        return slot;
+    }
+
+    private synchronized void release(Slot slot) {
+        slot.busy = false;
+    }
+
+    /**
+     * Enqueues the readback of the given regions of the given surface,
+     * which must lie within the bounds of the surface.
+     */
+    Request[] read(OGLSurfaceData src, Rectangle[] regions) {
+        Rectangle bounds = src.getBounds();
+        for (Rectangle r : regions) {
+            if (r.isEmpty() || !bounds.contains(r)) {
+                throw new IllegalArgumentException("Invalid region: " + r);
+            }
+        }
+        Request[] requests = new Request[regions.length];
+        OGLRenderQueue rq = OGLRenderQueue.getInstance();
+        rq.lock();
+        try {
+            OGLContext.validateContext(src);
+            for (int i = 0; i < regions.length; i++) {
+                Rectangle r = regions[i];
+                Slot slot = acquire(r.width, r.height);
+                // make sure the RenderQueue keeps a hard reference to the
+                // staging buffer, as for the sysmem destinations of
+                // OGLSurfaceToSwBlit
+                rq.addReference(slot.sd);
+                OGLBlitLoops.enqueueReadback(rq, src, slot.sd,
+                                             r.x, r.y, 0, 0,
+                                             r.width, r.height,
+                                             OGLSurfaceData.PF_INT_ARGB_PRE);
+                // the request is tracked once the operation is enqueued,
+                // since enqueuing it may have flushed the previous ones
+                requests[i] = new Request(this, slot, r.width, r.height);
+                pending.add(requests[i]);
+            }
+        } finally {
+            rq.unlock();
+        }
+        return requests;
+    }
+
+    @Override
+    public boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    @Override
+    public void batchProcessed() {
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).complete();
+        }
+        pending.clear();
+    }
+}
@@ -25,27 +25,256 @@
 
 package sun.java2d.opengl;
 
+import jdk.internal.misc.Unsafe;
 import sun.awt.util.ThreadGroupUtils;
+import sun.java2d.pipe.FlushPolicy;
 import sun.java2d.pipe.RenderBuffer;
+import sun.java2d.pipe.RenderBufferChain;
 import sun.java2d.pipe.RenderQueue;
+import sun.java2d.pipe.RenderQueueOptimizer;
 
 import static sun.java2d.pipe.BufferedOpCodes.*;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
 
 /**
  * OGL-specific implementation of RenderQueue.  This class provides a
  * single (daemon) thread that is responsible for periodically flushing
  * the queue, thus ensuring that only one thread communicates with the native
  * OpenGL libraries for the entire process.
+ *
+ * The QueueFlusher flushes the queue automatically according to the
+ * FlushPolicy selected by the sun.java2d.opengl.flushPolicy system property
+ * (see FlushPolicy for the supported values).  When rendering threads
+ * enqueue operations on their own segments (see RenderQueue.getSegment()),
+ * the QueueFlusher also merges the published segments before flushing
+ * them automatically.  For an elastic queue (see RenderQueue), the chain
+ * of spilled operations is processed before the buffer, and the
+ * QueueFlusher releases the idle chain segments.
+ *
+ * If the sun.java2d.opengl.peephole system property is set to true, each
+ * batch is rewritten by a RenderQueueOptimizer before being processed.
+ *
+ * If the sun.java2d.opengl.staging system property is set (to true, or to
+ * a budget in megabytes), the sw->surface blits copy their source into an
+ * OGLStagingArena instead of being flushed synchronously.
+ *
+ * If the sun.java2d.opengl.deferDisposal system property is set to true,
+ * the surface flushes and GraphicsConfig disposals are accumulated in an
+ * OGLDisposalQueue, and emitted by the next outermost lock() (before the
+ * caller validates its context) or automatic flush.
+ *
+ * If the dedicated queue lock is used (see RenderQueue), a flush that the
+ * caller does not wait for (flushNow(false)) hands the pending operations,
+ * with their hard references and tasks, off to the QueueFlusher, and
+ * returns right away: the QueueFlusher processes this "in flight" batch
+ * under the AWT lock alone, while the producers keep enqueuing on the
+ * buffer.  At most one batch is in flight, and it is always processed
+ * before the pending operations.  The batches holding spilled operations,
+ * staged blits or readback requests are still processed synchronously.
+ * Otherwise, the native flush needs the queue lock (i.e. the AWT lock)
+ * held by the producer, so every flush is synchronous.
  */
 public class OGLRenderQueue extends RenderQueue {
 
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    /** The policy used by the QueueFlusher for automatic flushes. */
+    private static final FlushPolicy flushPolicy;
+
+    static {
+        String policy = AccessController.doPrivileged(
+            new sun.security.action.GetPropertyAction(
+                "sun.java2d.opengl.flushPolicy"));
+        flushPolicy = FlushPolicy.parse(policy);
+    }
+
+    /** Whether the batches are rewritten by the peephole optimizer. */
+    private static final boolean usePeephole =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new sun.security.action.GetPropertyAction(
+                "sun.java2d.opengl.peephole")));
+
+    /** The budget of the staging arena in megabytes (0 if disabled). */
+    private static final int stagingBudget =
+        OGLStagingArena.parseBudget(AccessController.doPrivileged(
+            new sun.security.action.GetPropertyAction(
+                "sun.java2d.opengl.staging")));
+
+    /** Whether the release of native resources is deferred. */
+    private static final boolean deferDisposal =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new sun.security.action.GetPropertyAction(
+                "sun.java2d.opengl.deferDisposal")));
+
     private static OGLRenderQueue theInstance;
     final QueueFlusher flusher;
 
+    /** The peephole optimizer (null unless usePeephole is true). */
+    private final RenderQueueOptimizer optimizer;
+
+    /** The staging arena (null if stagingBudget is 0). */
+    private final OGLStagingArena arena;
+
+    /** The deferred disposal requests (null unless deferDisposal). */
+    private final OGLDisposalQueue disposals;
+
+    /** The asynchronous readback requests. */
+    private final OGLReadback readback;
+
+    /**
+     * Tracks the resources used by the pending operations, which must be
+     * kept until they have been processed.  The methods are invoked with
+     * the queue lock held.
+     */
+    interface BatchListener {
+        /**
+         * Returns true if no resources are tracked for the pending
+         * operations, which may then be handed off to the QueueFlusher
+         * (see flushNow()).
+         */
+        boolean isIdle();
+
+        /**
+         * Invoked when the pending operations have been processed.
+         */
+        void batchProcessed();
+    }
+
+    private final ArrayList<BatchListener> batchListeners =
+        new ArrayList<BatchListener>();
+
+    /**
+     * The tasks to run on the QueueFlusher thread at given offsets of a
+     * batch, i.e. after the operations enqueued before them and before
+     * those enqueued afterwards (see addTask()).  The offsets are relative
+     * to the start of the pending operations, including the spilled ones,
+     * so the tasks keep their position when the operations are spilled to
+     * the chain.  The batch is processed piece by piece, and
+     * each piece is split at the offsets of the tasks.
+     */
+    private final class BatchTasks {
+        private int[] offsets = new int[16];
+        private final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        /** The index of the next task to run. */
+        private int next;
+        /** The offset of the next piece of the batch to process. */
+        private int base;
+
+        void add(int offset, Runnable task) {
+            int n = tasks.size();
+            if (n == offsets.length) {
+                int[] newOffsets = new int[n * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, n);
+                offsets = newOffsets;
+            }
+            offsets[n] = offset;
+            tasks.add(task);
+        }
+
+        boolean isEmpty() {
+            return tasks.isEmpty();
+        }
+
+        /**
+         * Processes the next piece of the batch, and runs the tasks whose
+         * offset lies within (or at the end of) the piece.
+         */
+        void flushPiece(long addr, int limit, int ops, int refs) {
+            int start = 0;
+            while (next < tasks.size() && offsets[next] - base <= limit) {
+                int end = offsets[next] - base;
+                if (end > start) {
+                    flushBuffer(addr + start, end - start, 0, 0);
+                    start = end;
+                }
+                runTask(tasks.get(next++));
+            }
+            if (limit > start) {
+                flushBuffer(addr + start, limit - start, ops, refs);
+            }
+            base += limit;
+        }
+
+        /**
+         * Runs the remaining tasks once the whole batch has been processed,
+         * and resets this list.
+         */
+        void finish() {
+            while (next < tasks.size()) {
+                runTask(tasks.get(next++));
+            }
+            tasks.clear();
+            next = 0;
+            base = 0;
+        }
+
+        private void runTask(Runnable task) {
+            long start = (stats != null) ? System.nanoTime() : 0L;
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("exception in QueueFlusher:");
+                e.printStackTrace();
+            } finally {
+                if (stats != null) {
+                    stats.taskDuration.record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private BatchTasks batchTasks = new BatchTasks();
+
+    /**
+     * The batch handed off to the QueueFlusher (see QueueFlusher.handOff()),
+     * with its hard references, operation count and tasks.  These fields
+     * are only accessed with the monitor of the QueueFlusher held.
+     */
+    private RenderBuffer flightBuf;
+    private final ArrayList<Object> flightRefList = new ArrayList<Object>();
+    private int flightOps;
+    private BatchTasks flightTasks = new BatchTasks();
+
+    /** Process the segments of the chain. */
+    private final RenderBufferChain.Target chainTarget =
+        (addr, limit) -> batchTasks.flushPiece(addr, limit, 0, 0);
+
     private OGLRenderQueue() {
         super();
+        if (usePeephole) {
+            optimizer = new RenderQueueOptimizer();
+            if (stats != null) {
+                runOnExit(() -> optimizer.dump(System.err, "OGLRenderQueue"));
+            }
+        } else {
+            optimizer = null;
+        }
+        if (stagingBudget > 0) {
+            arena = new OGLStagingArena(stagingBudget);
+            batchListeners.add(arena);
+            if (stats != null) {
+                runOnExit(() -> arena.dump(System.err, "OGLRenderQueue"));
+            }
+        } else {
+            arena = null;
+        }
+        if (deferDisposal) {
+            disposals = new OGLDisposalQueue();
+            if (stats != null) {
+                runOnExit(() -> disposals.dump(System.err, "OGLRenderQueue"));
+            }
+        } else {
+            disposals = null;
+        }
+        readback = new OGLReadback();
+        batchListeners.add(readback);
+        if (stats != null) {
+            runOnExit(() -> OGLSurfacePool.dump(System.err));
+            runOnExit(() -> OGLTextureCache.dump(System.err));
+            runOnExit(() -> OGLTextureAtlas.dump(System.err));
+        }
         /*
          * The thread must be a member of a thread group
          * which will not get GCed before VM exit.
@@ -96,6 +325,13 @@ public class OGLRenderQueue extends RenderQueue {
      */
     public static void disposeGraphicsConfig(long pConfigInfo) {
         OGLRenderQueue rq = getInstance();
+        // the textures of the atlas pages are disposed with the config
+        OGLTextureAtlas.dispose(pConfigInfo);
+        if (rq.disposals != null) {
+            // disposed along with the next batch
+            rq.disposals.disposeConfig(pConfigInfo);
+            return;
+        }
         rq.lock();
         try {
             // make sure we make the context associated with the given
@@ -114,6 +350,38 @@ public class OGLRenderQueue extends RenderQueue {
         }
     }
 
+    /**
+     * Returns the policy used to decide when the queue is flushed
+     * automatically.
+     */
+    static FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Returns the staging arena of this queue, or null if it is disabled.
+     * Note that the queue lock must be held when using the arena.
+     */
+    OGLStagingArena getStagingArena() {
+        return arena;
+    }
+
+    /**
+     * Returns the deferred disposal requests of this queue, or null if the
+     * release of native resources is not deferred.
+     */
+    OGLDisposalQueue getDisposalQueue() {
+        return disposals;
+    }
+
+    /**
+     * Returns the tracker of the asynchronous readback requests of this
+     * queue.
+     */
+    OGLReadback getReadback() {
+        return readback;
+    }
+
     /**
      * Returns true if the current thread is the OGL QueueFlusher thread.
      */
@@ -125,7 +393,28 @@ public class OGLRenderQueue extends RenderQueue {
     public void flushNow(boolean sync) {
         // assert lock.isHeldByCurrentThread();
         try {
-            flusher.flushNow(sync);
+            if (Thread.currentThread() == flusher) {
+                // the flusher is merging segments and needs room on the
+                // buffer (see QueueFlusher.run()): it holds the locks, so
+                // process the pending operations right away
+                flushBuffer();
+                return;
+            }
+            if (stats != null) {
+                if (sync) {
+                    stats.syncFlushes.increment();
+                } else {
+                    stats.roomFlushes.increment();
+                }
+            }
+            if (!sync && isQueueLockDedicated() && flusher.handOff()) {
+                // the QueueFlusher processes the pending operations under
+                // the AWT lock alone, while we keep enqueuing
+                return;
+            }
+            // otherwise the native flush needs the queue lock held by the
+            // caller
+            flusher.flushNow();
         } catch (Exception e) {
             System.err.println("exception in flushNow:");
             e.printStackTrace();
@@ -136,6 +425,9 @@ public class OGLRenderQueue extends RenderQueue {
     public void flushAndInvokeNow(Runnable r) {
         // assert lock.isHeldByCurrentThread();
         try {
+            if (stats != null) {
+                stats.syncFlushes.increment();
+            }
             flusher.flushAndInvokeNow(r);
         } catch (Exception e) {
             System.err.println("exception in flushAndInvokeNow:");
@@ -143,28 +435,140 @@ public class OGLRenderQueue extends RenderQueue {
         }
     }
 
+    /**
+     * Emits the deferred disposals, if any.  This happens before the owner
+     * of the queue lock validates its context, so the scratch context made
+     * current by the disposals never interleaves with the operations of
+     * the caller; a flush (whether synchronous or not) may instead happen
+     * in the middle of an operation, and never emits them.
+     */
+    @Override
+    protected void queueLocked() {
+        if (disposals != null && disposals.hasPending()) {
+            disposals.emit(this);
+        }
+    }
+
+    /**
+     * Enqueues the given task, which will be invoked on the QueueFlusher
+     * thread when the queue is flushed, right after the operations enqueued
+     * so far, and before those enqueued afterwards.  Several tasks may thus
+     * be interleaved with the operations of a single batch.  As with
+     * flushAndInvokeNow(), the task must not attempt to acquire the AWT
+     * lock.
+     */
+    void addTask(Runnable r) {
+        // assert lock.isHeldByCurrentThread();
+        batchTasks.add(getPendingBytes(), r);
+    }
+
+    /**
+     * Enqueues the given task (see addTask()), and asks the QueueFlusher
+     * to flush the current batch as soon as it can acquire the queue lock,
+     * without waiting for the batch to be processed.
+     */
+    public void flushAndInvokeLater(Runnable r) {
+        // assert lock.isHeldByCurrentThread();
+        addTask(r);
+        flusher.requestFlush();
+    }
+
     private native void flushBuffer(long buf, int limit);
 
+    /**
+     * Processes the given batch, recording it in the queue statistics, the
+     * opcode profiler and the queue trace, and rewriting it with the
+     * peephole optimizer.
+     */
+    private void flushBuffer(long addr, int limit, int ops, int refs) {
+        if (profiler != null) {
+            // profile the operations as enqueued
+            profiler.record(addr, limit);
+        }
+        if (optimizer != null) {
+            limit = optimizer.optimize(addr, limit);
+        }
+        if (trace != null) {
+            trace.recordBatch(addr, limit);
+        }
+        if (stats == null) {
+            flushBuffer(addr, limit);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            flushBuffer(addr, limit);
+        } finally {
+            stats.batchFlushed(limit, ops, refs, System.nanoTime() - start);
+        }
+    }
+
     private void flushBuffer() {
         // assert lock.isHeldByCurrentThread();
+        if (flusher.flightPending) {
+            // process the batch handed off previously first
+            flusher.flushFlight();
+        }
+        if (chain != null) {
+            // process the spilled operations first
+            chain.flush(chainTarget);
+        }
         int limit = buf.position();
         if (limit > 0) {
             // process the queue
-            flushBuffer(buf.getAddress(), limit);
+            batchTasks.flushPiece(buf.getAddress(), limit,
+                                  getOpCount(), refList.size());
         }
+        batchTasks.finish();
         // reset the queue
         clear();
+        for (int i = 0; i < batchListeners.size(); i++) {
+            batchListeners.get(i).batchProcessed();
+        }
     }
 
     private final class QueueFlusher extends Thread {
-        private final static long LATENCY = 100;
-        private final static long FLUSH_THRESHOLD = 10; // was 4 in jb jdk8u
-        private final static long DEFAULT_FLUSH_COUNT = LATENCY / FLUSH_THRESHOLD;
+        /**
+         * Delay (in milliseconds) between two attempts to acquire the AWT
+         * lock on behalf of a waiting thread (see acquireFlushLock()).
+         */
+        private static final long FLUSH_LOCK_RETRY = 1;
 
+        /**
+         * Set when a thread holding the queue lock waits for the flusher
+         * to process the queue on its behalf.
+         */
         private boolean needsFlush = false;
+        /**
+         * Set when a thread has enqueued a task to be invoked once the
+         * current batch is flushed, without waiting for it (see
+         * flushAndInvokeLater()).
+         */
+        private boolean flushRequested = false;
+        /**
+         * Set when the thread waiting for the flusher holds the AWT lock
+         * along with the queue lock (see flushNow() and handOff()).
+         */
+        private boolean callerLockedForFlush = false;
+        /** Set when a batch has been handed off (see handOff()). */
+        private boolean flightPending = false;
+        /**
+         * Set when a thread holding the queue lock waits for the batch in
+         * flight to be processed (see handOff()).
+         */
+        private boolean flightAwaited = false;
         private Runnable task;
         private Error error;
 
+        /**
+         * Sampling state used to feed the FlushPolicy: the time (in
+         * nanoseconds) at which the pending operations were first observed,
+         * and the position and time of the last observed change.
+         */
+        private long pendingSince;
+        private long lastChange;
+        private int lastPosition;
+
         QueueFlusher(ThreadGroup threadGroup) {
             super(threadGroup, "Java2D Queue Flusher");
             setDaemon(true);
@@ -172,89 +576,311 @@ public class OGLRenderQueue extends RenderQueue {
         }
 
         public synchronized void flushNow() {
-            flushNow(true);
+            // the flusher relies on the locks held by the current thread;
+            // if the AWT lock is not available, the flusher acquires it
+            // (see acquireFlushLock()), as we must not block on it while
+            // holding the queue lock
+            callerLockedForFlush = tryLockForFlush();
+            boolean interrupted = false;
+            try {
+                // wake up the flusher
+                needsFlush = true;
+                notify();
+                // wait for flush to complete
+                while (needsFlush) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (callerLockedForFlush) {
+                    callerLockedForFlush = false;
+                    unlockForFlush();
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // re-throw any error that may have occurred during the flush
+            if (error != null) {
+                Error e = error;
+                error = null;
+                throw e;
+            }
         }
 
-        public synchronized void flushNow(boolean sync) {
-            // wake up the flusher
-            needsFlush = true;
-            if (!sync) {
-// TODO: check possible bug who has the AWT lock ?
-                return;
+        public synchronized void flushAndInvokeNow(Runnable task) {
+            this.task = task;
+            flushNow();
+        }
+
+        /**
+         * Moves the pending operations, with their hard references and
+         * tasks, to the batch in flight, which the flusher processes under
+         * the AWT lock alone.  If a batch is already in flight, waits for
+         * it to be processed first.  Returns false, leaving the pending
+         * operations untouched, if they cannot be handed off, i.e. if some
+         * of them have been spilled to the chain, or if a BatchListener
+         * tracks resources for them.  The current thread must hold the
+         * queue lock.
+         */
+        public synchronized boolean handOff() {
+            if (chain != null && chain.getBytes() > 0) {
+                return false;
+            }
+            for (int i = 0; i < batchListeners.size(); i++) {
+                if (!batchListeners.get(i).isIdle()) {
+                    return false;
+                }
             }
+            if (flightPending) {
+                // the flusher relies on the AWT lock held by the current
+                // thread, or lent by a thread waiting for the queue lock
+                // (see run())
+                callerLockedForFlush = tryLockForFlush();
+                flightAwaited = true;
+                boolean interrupted = false;
+                try {
+                    notify();
+                    while (flightPending) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                } finally {
+                    flightAwaited = false;
+                    if (callerLockedForFlush) {
+                        callerLockedForFlush = false;
+                        unlockForFlush();
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            if (flightBuf == null) {
+                flightBuf = RenderBuffer.allocate(buf.capacity());
+            }
+            int limit = buf.position();
+            if (limit > 0) {
+                unsafe.copyMemory(buf.getAddress(),
+                                  flightBuf.getAddress(), limit);
+                flightBuf.position(limit);
+            }
+            flightRefList.addAll(refList);
+            flightOps = getOpCount();
+            // the offsets of the tasks are relative to the handed off batch
+            BatchTasks tasks = flightTasks;
+            flightTasks = batchTasks;
+            batchTasks = tasks;
+            clear();
+            flightPending = true;
+            notify();
+            return true;
+        }
 
+        /**
+         * Processes the batch in flight.  The AWT lock must be held (or
+         * lent) by the current thread, but not necessarily the queue lock.
+         */
+        private void flushFlight() {
+            flightPending = false;
+            try {
+                int limit = flightBuf.position();
+                if (limit > 0) {
+                    flightTasks.flushPiece(flightBuf.getAddress(), limit,
+                                           flightOps, flightRefList.size());
+                }
+                flightTasks.finish();
+            } finally {
+                flightBuf.clear();
+                flightRefList.clear();
+                flightOps = 0;
+            }
+        }
+
+        /**
+         * Wakes up the flusher so that it flushes the queue as soon as it
+         * can acquire the queue lock (without blocking).
+         */
+        public synchronized void requestFlush() {
+            flushRequested = true;
             notify();
-            // wait for flush to complete
-            while (needsFlush) {
+        }
+
+        /**
+         * Acquires the AWT lock on behalf of the thread waiting for the
+         * flush with the queue lock held, which could not acquire it.  The
+         * monitor is released between attempts.  Returns true if the lock
+         * has been acquired, or false if it is lent by the thread holding
+         * it, which waits for the queue lock (see
+         * RenderQueue.isFlushLockLent()).
+         */
+        private boolean acquireFlushLock() {
+            while (!tryLockForFlush()) {
+                if (isFlushLockLent()) {
+                    return false;
+                }
                 try {
-                    wait();
+                    wait(FLUSH_LOCK_RETRY);
                 } catch (InterruptedException e) {
                     // ignored
                 }
             }
-
-            // re-throw any error that may have occurred during the flush
-            if (error != null) {
-                throw error;
-            }
+            return true;
         }
 
-        public synchronized void flushAndInvokeNow(Runnable task) {
-            this.task = task;
-            flushNow();
+        /**
+         * Samples the buffer and returns true if the FlushPolicy
+         * requests an automatic flush.  Note that the buffer position is
+         * read without holding the queue lock; it is only used as a hint,
+         * and is checked again once the lock has been acquired.
+         */
+        private boolean isAutoFlushDue() {
+            int position = getPendingBytes() + getPendingSegmentBytes();
+            if (position <= 0) {
+                pendingSince = 0L;
+                lastPosition = 0;
+                return false;
+            }
+            long now = System.nanoTime();
+            if (pendingSince == 0L || position < lastPosition) {
+                // the buffer has been (re)filled since the last sample
+                pendingSince = now;
+                lastChange = now;
+                lastPosition = position;
+            } else if (position != lastPosition) {
+                lastChange = now;
+                lastPosition = position;
+            }
+            return flushPolicy.shouldFlush(position, getMaxPendingBytes(),
+                                           (now - pendingSince) / 1000000L,
+                                           (now - lastChange) / 1000000L);
         }
 
         @Override
         public synchronized void run() {
             boolean locked = false;
-            int count;
 
             while (true) {
-                
+
                 while (!needsFlush) {
-                    count = 0;
                     try {
                         /*
-                         * Wait FLUSH_THRESHOLD ms then check if needsFlush is set by
-                         * flushNow() call or we waited DEFAULT_FLUSH_COUNT times.
-                         * If so, flush the queue.
+                         * Wait for a flushNow() call, or sample the queue
+                         * once the polling interval of the flush policy has
+                         * elapsed.  While a batch is in flight, retry to
+                         * acquire the AWT lock more eagerly.
                          */
-                        wait(FLUSH_THRESHOLD);
-                        /*
-                         * We will automatically flush the queue if the
-                         * following conditions apply:
-                         *   - the wait() timed out DEFAULT_FLUSH_COUNT times
-                         *   - we can lock the queue (without blocking)
-                         *   - there is something in the queue to flush
-                         * Otherwise, just continue (we'll flush eventually).
-                         */
-                        if (!needsFlush && (count >= DEFAULT_FLUSH_COUNT) &&
-                                (locked = tryLock()))
+                        wait(flightPending ? FLUSH_LOCK_RETRY
+                                           : flushPolicy.getPollInterval());
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                    // process the batch in flight without the queue lock,
+                    // so that the producers keep enqueuing meanwhile
+                    if (flightPending && !needsFlush) {
+                        boolean lockedForFlush = tryLockForFlush();
+                        if (lockedForFlush ||
+                            (flightAwaited &&
+                             (callerLockedForFlush || isFlushLockLent())))
                         {
-                            if (buf.position() > 0) {
-                                needsFlush = true;
-                            } else {
-                                locked = false;
-                                unlock();
+                            try {
+                                flushFlight();
+                            } catch (Throwable t) {
+                                System.err.println("exception in QueueFlusher:");
+                                t.printStackTrace();
+                            } finally {
+                                if (lockedForFlush) {
+                                    unlockForFlush();
+                                }
+                                // allow the thread handing off the next
+                                // batch to continue
+                                notify();
                             }
                         }
-                    } catch (InterruptedException e) {
-                        // ignored
                     }
-                    count++;
+                    // release the chain segments unused for a while
+                    if (!needsFlush && chain != null &&
+                        chain.isTrimDue() && tryLock())
+                    {
+                        try {
+                            chain.trim();
+                        } finally {
+                            unlock();
+                        }
+                    }
+                    /*
+                     * We will automatically flush the queue if the
+                     * following conditions apply:
+                     *   - a flush has been requested, the flush policy
+                     *     requests a flush of the pending operations,
+                     *     or a deferred disposal has waited too long
+                     *   - we can lock the queue (without blocking)
+                     *   - there is something in the queue to flush
+                     * Otherwise, just continue (we'll flush eventually).
+                     * The published segments are merged, and the deferred
+                     * disposals emitted, once both locks have been acquired.
+                     */
+                    if (!needsFlush &&
+                        (flushRequested || isAutoFlushDue() ||
+                         (disposals != null && disposals.isDue())) &&
+                        (locked = tryLock()))
+                    {
+                        flushRequested = false;
+                        if ((getPendingBytes() > 0 || !batchTasks.isEmpty() ||
+                             getPendingSegmentBytes() > 0 ||
+                             (disposals != null && disposals.hasPending())) &&
+                            tryLockForFlush())
+                        {
+                            try {
+                                mergeSegments();
+                                if (disposals != null) {
+                                    disposals.emit(OGLRenderQueue.this);
+                                }
+                            } catch (Throwable t) {
+                                System.err.println("exception in QueueFlusher:");
+                                t.printStackTrace();
+                            }
+                            if (stats != null) {
+                                stats.autoFlushes.increment();
+                            }
+                            needsFlush = true;
+                        } else {
+                            locked = false;
+                            unlock();
+                        }
+                    }
                 }
                 // locked by either this thread (see locked flag) or by waiting thread:
                 // TODO: check lock is always acquired when needsFlush = true ?
+                boolean lockedForFlush =
+                    !locked && !callerLockedForFlush && acquireFlushLock();
                 try {
                     // reset the throwable state
                     error = null;
-                    
+
                     // flush the buffer now
                     flushBuffer();
-                    
+
                     // if there's a task, invoke that now as well
                     if (task != null) {
-                        task.run();
+                        if (stats != null) {
+                            long start = System.nanoTime();
+                            try {
+                                task.run();
+                            } finally {
+                                stats.taskDuration.record(
+                                    System.nanoTime() - start);
+                            }
+                        } else {
+                            task.run();
+                        }
                         task = null;
                     }
                 } catch (Error e) {
@@ -265,8 +891,14 @@ public class OGLRenderQueue extends RenderQueue {
                 } finally {
                     if (locked) {
                         locked = false;
+                        unlockForFlush();
                         unlock();
+                    } else if (lockedForFlush) {
+                        unlockForFlush();
                     }
+                    // the buffer is empty again
+                    pendingSince = 0L;
+                    lastPosition = 0;
                     // allow the waiting thread to continue
                     needsFlush = false;
                     notify();
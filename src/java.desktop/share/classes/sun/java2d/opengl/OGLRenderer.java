@@ -25,6 +25,8 @@
 
 package sun.java2d.opengl;
 
+import java.awt.Composite;
+import java.awt.Paint;
 import java.awt.Transparency;
 import java.awt.geom.Path2D;
 import sun.java2d.InvalidPipeException;
@@ -32,7 +34,10 @@ import sun.java2d.SunGraphics2D;
 import sun.java2d.loops.GraphicsPrimitive;
 import sun.java2d.pipe.BufferedRenderPipe;
 import sun.java2d.pipe.ParallelogramPipe;
+import sun.java2d.pipe.Region;
+import sun.java2d.pipe.RenderBuffer;
 import sun.java2d.pipe.RenderQueue;
+import sun.java2d.pipe.RenderSegment;
 import sun.java2d.pipe.SpanIterator;
 import static sun.java2d.pipe.BufferedOpCodes.*;
 
@@ -72,6 +77,156 @@ class OGLRenderer extends BufferedRenderPipe {
                                    null, sg2d.paint, sg2d, ctxflags);
     }
 
+    /**
+     * Returns the RenderSegment of the current thread, opened for the
+     * context state of the given SunGraphics2D, or null if the operation
+     * must be enqueued on the queue.  Segments are only used for simple
+     * operations with a color paint on offscreen surfaces (e.g. a
+     * VolatileImage), which can be rendered by several threads at once.
+     */
+    private RenderSegment openSegment(SunGraphics2D sg2d) {
+        if (sg2d.paintState > SunGraphics2D.PAINT_ALPHACOLOR ||
+            !(sg2d.surfaceData instanceof OGLSurfaceData))
+        {
+            return null;
+        }
+        OGLSurfaceData dstData = (OGLSurfaceData)sg2d.surfaceData;
+        if (dstData.isOnScreen()) {
+            return null;
+        }
+        RenderSegment seg = rq.getSegment();
+        if (seg == null) {
+            return null;
+        }
+        int ctxflags =
+            sg2d.paint.getTransparency() == Transparency.OPAQUE ?
+                OGLContext.SRC_IS_OPAQUE : OGLContext.NO_CONTEXT_FLAGS;
+        RenderSegment.Validator v = seg.getValidator();
+        if (!(v instanceof SegmentValidator) ||
+            !((SegmentValidator)v).matches(sg2d, dstData, ctxflags))
+        {
+            v = new SegmentValidator(sg2d, dstData, ctxflags);
+        }
+        seg.open(v);
+        return seg;
+    }
+
+    @Override
+    public void drawLine(SunGraphics2D sg2d,
+                         int x1, int y1, int x2, int y2)
+    {
+        RenderSegment seg = openSegment(sg2d);
+        if (seg == null) {
+            super.drawLine(sg2d, x1, y1, x2, y2);
+            return;
+        }
+        try {
+            int transx = sg2d.transX;
+            int transy = sg2d.transY;
+            RenderBuffer sbuf = seg.getBuffer();
+            seg.ensureCapacity(20);
+            sbuf.putInt(DRAW_LINE);
+            sbuf.putInt(x1 + transx);
+            sbuf.putInt(y1 + transy);
+            sbuf.putInt(x2 + transx);
+            sbuf.putInt(y2 + transy);
+        } finally {
+            seg.close();
+        }
+    }
+
+    @Override
+    public void drawRect(SunGraphics2D sg2d,
+                         int x, int y, int width, int height)
+    {
+        RenderSegment seg = openSegment(sg2d);
+        if (seg == null) {
+            super.drawRect(sg2d, x, y, width, height);
+            return;
+        }
+        try {
+            RenderBuffer sbuf = seg.getBuffer();
+            seg.ensureCapacity(20);
+            sbuf.putInt(DRAW_RECT);
+            sbuf.putInt(x + sg2d.transX).putInt(y + sg2d.transY);
+            sbuf.putInt(width).putInt(height);
+        } finally {
+            seg.close();
+        }
+    }
+
+    @Override
+    public void fillRect(SunGraphics2D sg2d,
+                         int x, int y, int width, int height)
+    {
+        RenderSegment seg = openSegment(sg2d);
+        if (seg == null) {
+            super.fillRect(sg2d, x, y, width, height);
+            return;
+        }
+        try {
+            RenderBuffer sbuf = seg.getBuffer();
+            seg.ensureCapacity(20);
+            sbuf.putInt(FILL_RECT);
+            sbuf.putInt(x + sg2d.transX).putInt(y + sg2d.transY);
+            sbuf.putInt(width).putInt(height);
+        } finally {
+            seg.close();
+        }
+    }
+
+    /**
+     * Records the context validation of a segment: the context state is
+     * captured from the SunGraphics2D when the segment is opened, and
+     * validated when the segment is merged into the queue (possibly on
+     * another thread), using a copy of the SunGraphics2D, which is disposed
+     * along with the validator.
+     */
+    private static final class SegmentValidator
+        implements RenderSegment.Validator
+    {
+        private final OGLSurfaceData dstData;
+        private final Region clip;
+        private final Composite comp;
+        private final Paint paint;
+        private final int pixel;
+        private final int ctxflags;
+        private final SunGraphics2D sg2d;
+
+        SegmentValidator(SunGraphics2D sg2d,
+                         OGLSurfaceData dstData, int ctxflags)
+        {
+            this.dstData = dstData;
+            this.clip = sg2d.getCompClip();
+            this.comp = sg2d.composite;
+            this.paint = sg2d.paint;
+            this.pixel = sg2d.pixel;
+            this.ctxflags = ctxflags;
+            this.sg2d = (SunGraphics2D)sg2d.create();
+        }
+
+        boolean matches(SunGraphics2D sg2d,
+                        OGLSurfaceData dstData, int ctxflags)
+        {
+            return this.dstData == dstData &&
+                   this.clip == sg2d.getCompClip() &&
+                   this.comp == sg2d.composite &&
+                   this.paint == sg2d.paint &&
+                   this.pixel == sg2d.pixel &&
+                   this.ctxflags == ctxflags;
+        }
+
+        public void validate() {
+            OGLContext.validateContext(dstData, dstData,
+                                       clip, comp,
+                                       null, paint, sg2d, ctxflags);
+        }
+
+        public void dispose() {
+            sg2d.dispose();
+        }
+    }
+
     void copyArea(SunGraphics2D sg2d,
                   int x, int y, int w, int h, int dx, int dy)
     {
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.awt.AlphaComposite;
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import sun.awt.image.BufImgSurfaceData;
+import sun.java2d.SurfaceData;
+import sun.java2d.loops.Blit;
+import sun.java2d.loops.CompositeType;
+import sun.java2d.loops.SurfaceType;
+
+/**
+ * The staging arena of the OGLRenderQueue, holding copies of the system
+ * memory surfaces blitted to OpenGL surfaces.  When a sw->surface blit is
+ * enqueued, the source pixels are converted to IntArgbPre into the arena,
+ * and the BLIT operation refers to the copy; since the copy cannot be
+ * changed by the application, the operation no longer has to be processed
+ * synchronously (see OGLBlitLoops.Blit()).
+ *
+ * Small sources are packed (by rows of rectangles) into pooled slabs of
+ * SLAB_SIZE x SLAB_SIZE pixels; larger sources get a dedicated snapshot,
+ * which is dropped once processed.  A slab is reused once the batches
+ * referring to it have been processed: the slabs used by the pending
+ * operations are returned to the pool once the batch has been processed
+ * (see batchProcessed()).
+ * If the memory budget of the arena is exhausted, stage() returns null and
+ * the caller falls back to a synchronous flush, which releases the slabs.
+ *
+ * All methods must be called with the queue lock held.
+ */
+final class OGLStagingArena implements OGLRenderQueue.BatchListener {
+
+    /** The width and height (in pixels) of a slab. */
+    static final int SLAB_SIZE = 512;
+
+    /** The default memory budget (in megabytes). */
+    private static final int DEFAULT_BUDGET = 16;
+
+    /** A slab or a snapshot, and its row allocation state. */
+    private static final class Slab {
+        final SurfaceData sd;
+        final int bytes;
+        final boolean snapshot;
+        int x, rowY, rowHeight;
+
+        Slab(int w, int h, boolean snapshot) {
+            BufferedImage img =
+                new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            this.sd = BufImgSurfaceData.createData(img);
+            this.bytes = w * h * 4;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Allocates a w x h rectangle, and returns its origin packed as
+         * (x << 16 | y), or -1 if the slab is full.
+         */
+        int allocate(int w, int h) {
+            if (x + w > SLAB_SIZE) {
+                // start a new row
+                rowY += rowHeight;
+                rowHeight = 0;
+                x = 0;
+            }
+            if (rowY + h > SLAB_SIZE) {
+                return -1;
+            }
+            int origin = (x << 16) | rowY;
+            x += w;
+            if (h > rowHeight) {
+                rowHeight = h;
+            }
+            return origin;
+        }
+
+        void reset() {
+            x = rowY = rowHeight = 0;
+        }
+    }
+
+    private final int maxBytes;
+    private int allocatedBytes;
+
+    private final ArrayList<Slab> free = new ArrayList<Slab>();
+    /** The slabs and snapshots used by the pending operations. */
+    private final ArrayList<Slab> pending = new ArrayList<Slab>();
+    /** The slab being filled (also part of pending). */
+    private Slab current;
+    /** The slab or snapshot returned by the last call to stage(). */
+    private Slab last;
+
+    private int stagedX, stagedY;
+
+    // statistics
+    private long stagedBlits, stagedBytes, snapshots, rejectedBlits;
+    private int highWaterBytes;
+
+    OGLStagingArena(int budget) {
+        this.maxBytes = budget * 1024 * 1024;
+    }
+
+    /**
+     * Parses the value of the sun.java2d.opengl.staging system property:
+     * either a boolean, or the memory budget of the arena in megabytes.
+     * Returns 0 if the arena is disabled.
+     */
+    static int parseBudget(String value) {
+        if (value == null || value.isEmpty() ||
+            value.equalsIgnoreCase("false"))
+        {
+            return 0;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return DEFAULT_BUDGET;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid staging arena budget: " + value);
+            return DEFAULT_BUDGET;
+        }
+    }
+
+    /**
+     * Copies the given region of the source surface into the arena, and
+     * returns the staging surface holding the copy (at the location given
+     * by getStagedX() and getStagedY()), or null if the arena is full.
+     */
+    SurfaceData stage(SurfaceData src, int sx, int sy, int w, int h) {
+        if (w <= 0 || h <= 0) {
+            return null;
+        }
+        Slab slab;
+        int origin;
+        if (w > SLAB_SIZE || h > SLAB_SIZE) {
+            // too large for a slab, take a snapshot of the region
+            slab = allocateSlab(w, h, true);
+            if (slab == null) {
+                return null;
+            }
+            snapshots++;
+            origin = 0;
+        } else {
+            origin = (current != null) ? current.allocate(w, h) : -1;
+            if (origin < 0) {
+                Slab s = (free.isEmpty()) ?
+                    allocateSlab(SLAB_SIZE, SLAB_SIZE, false) :
+                    free.remove(free.size() - 1);
+                if (s == null) {
+                    return null;
+                }
+                current = s;
+                origin = s.allocate(w, h);
+            }
+            slab = current;
+        }
+        if (!pending.contains(slab)) {
+            pending.add(slab);
+        }
+        last = slab;
+        stagedX = origin >>> 16;
+        stagedY = origin & 0xffff;
+
+        Blit convert = Blit.getFromCache(src.getSurfaceType(),
+                                         CompositeType.SrcNoEa,
+                                         SurfaceType.IntArgbPre);
+        convert.Blit(src, slab.sd, AlphaComposite.Src, null,
+                     sx, sy, stagedX, stagedY, w, h);
+        stagedBlits++;
+        stagedBytes += w * h * 4;
+        return slab.sd;
+    }
+
+    int getStagedX() {
+        return stagedX;
+    }
+
+    int getStagedY() {
+        return stagedY;
+    }
+
+    private Slab allocateSlab(int w, int h, boolean snapshot) {
+        long bytes = (long)w * h * 4;
+        if (allocatedBytes + bytes > maxBytes) {
+            rejectedBlits++;
+            return null;
+        }
+        Slab slab;
+        try {
+            slab = new Slab(w, h, snapshot);
+        } catch (OutOfMemoryError e) {
+            rejectedBlits++;
+            return null;
+        }
+        allocatedBytes += slab.bytes;
+        if (allocatedBytes > highWaterBytes) {
+            highWaterBytes = allocatedBytes;
+        }
+        return slab;
+    }
+
+    @Override
+    public boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Releases the slabs used by the pending operations, once processed.
+     * The last staged slab stays pending until the next batch: the
+     * operation using it may not have been enqueued yet, if enqueuing it
+     * caused the flush (see RenderQueue.ensureCapacity()).
+     */
+    @Override
+    public void batchProcessed() {
+        if (last != null) {
+            pending.remove(last);
+        }
+        release(pending);
+        if (last != null) {
+            pending.add(last);
+        }
+        if (current != last) {
+            current = null;
+        }
+        last = null;
+    }
+
+    private void release(ArrayList<Slab> slabs) {
+        for (Slab slab : slabs) {
+            if (slab.snapshot) {
+                allocatedBytes -= slab.bytes;
+            } else {
+                slab.reset();
+                free.add(slab);
+            }
+        }
+        slabs.clear();
+    }
+
+    void dump(PrintStream ps, String name) {
+        ps.println("Staging arena for " + name + ":");
+        ps.println("  budget=" + maxBytes +
+                   " allocated bytes=" + allocatedBytes +
+                   " high-water bytes=" + highWaterBytes +
+                   " pooled slabs=" + free.size());
+        ps.println("  staged blits=" + stagedBlits +
+                   " staged bytes=" + stagedBytes +
+                   " snapshots=" + snapshots +
+                   " rejected blits=" + rejectedBlits);
+    }
+}
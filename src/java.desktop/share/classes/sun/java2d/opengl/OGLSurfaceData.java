@@ -45,6 +45,7 @@ import sun.java2d.loops.SurfaceType;
 import sun.java2d.pipe.ParallelogramPipe;
 import sun.java2d.pipe.PixelToParallelogramConverter;
 import sun.java2d.pipe.RenderBuffer;
+import sun.java2d.pipe.RenderQueueTrace;
 import sun.java2d.pipe.TextPipe;
 import static sun.java2d.pipe.BufferedOpCodes.*;
 import static sun.java2d.opengl.OGLContext.OGLContextCaps.*;
@@ -285,6 +286,14 @@ public abstract class OGLSurfaceData extends SurfaceData
         if (!success) {
             throw new OutOfMemoryError("can't create offscreen surface");
         }
+
+        RenderQueueTrace trace = OGLRenderQueue.getInstance().getTrace();
+        if (trace != null) {
+            // allow the replayer to create a matching surface
+            trace.recordSurface(getNativeOps(),
+                                graphicsConfig.getNativeConfigInfo(),
+                                type, width, height, isOpaque);
+        }
     }
 
     /**
@@ -555,6 +564,20 @@ public abstract class OGLSurfaceData extends SurfaceData
     public void flush() {
         invalidate();
         OGLRenderQueue rq = OGLRenderQueue.getInstance();
+        OGLDisposalQueue disposals = rq.getDisposalQueue();
+        if (disposals != null) {
+            // the native resources are released along with the next batch,
+            // unless too many of them are already waiting
+            if (disposals.flushSurface(this)) {
+                rq.lock();
+                try {
+                    rq.flushNow();
+                } finally {
+                    rq.unlock();
+                }
+            }
+            return;
+        }
         rq.lock();
         try {
             // make sure we have a current context before
@@ -609,7 +632,9 @@ public abstract class OGLSurfaceData extends SurfaceData
             rq.ensureCapacityAndAlignment(12, 4);
             buf.putInt(SWAP_BUFFERS);
             buf.putLong(window);
-            rq.flushNow();
+            // subsequent rendering is ordered after the swap on the queue,
+            // so there is no need to wait for the swap to complete
+            rq.flushNow(false);
         } finally {
             rq.unlock();
         }
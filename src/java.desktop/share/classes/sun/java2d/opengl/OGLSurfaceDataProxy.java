@@ -51,8 +51,17 @@ public class OGLSurfaceDataProxy extends SurfaceDataProxy {
         return new OGLSurfaceDataProxy(dstConfig, srcData.getTransparency());
     }
 
+    /**
+     * The number of updates of the cached image, beyond which the image
+     * is no longer cached in the texture atlas.
+     */
+    private static final int MAX_ATLAS_UPDATES = 2;
+
     OGLGraphicsConfig oglgc;
     int transparency;
+    volatile OGLTextureCache.Entry cacheEntry;
+
+    private int updates;
 
     public OGLSurfaceDataProxy(OGLGraphicsConfig oglgc, int transparency) {
         this.oglgc = oglgc;
@@ -65,15 +74,69 @@ public class OGLSurfaceDataProxy extends SurfaceDataProxy {
                                            int w, int h)
     {
         if (cachedData == null) {
+            OGLTextureCache.reserve(this, w, h);
+            if (updates <= MAX_ATLAS_UPDATES &&
+                OGLTextureAtlas.isEligible(w, h) &&
+                !OGLTextureAtlas.isExcluded(srcData))
+            {
+                // pack the (small) image into a shared texture
+                cachedData = OGLTextureAtlas.allocate(oglgc, this, w, h,
+                                                      transparency);
+                if (cachedData != null) {
+                    return cachedData;
+                }
+            }
             try {
                 cachedData = oglgc.createManagedSurface(w, h, transparency);
             } catch (OutOfMemoryError er) {
-                return null;
+                // release some of the cached textures, and try again
+                if (!OGLTextureCache.shrink(this)) {
+                    OGLTextureCache.release(this);
+                    return null;
+                }
+                try {
+                    cachedData =
+                        oglgc.createManagedSurface(w, h, transparency);
+                } catch (OutOfMemoryError er2) {
+                    OGLTextureCache.release(this);
+                    return null;
+                }
             }
         }
         return cachedData;
     }
 
+    @Override
+    public void updateSurfaceData(SurfaceData srcData,
+                                  SurfaceData dstData,
+                                  int w, int h)
+    {
+        // images updated too often get a texture of their own the next
+        // time they are cached
+        updates++;
+        super.updateSurfaceData(srcData, dstData, w, h);
+    }
+
+    @Override
+    public SurfaceData replaceData(SurfaceData srcData,
+                                   int txtype,
+                                   CompositeType comp,
+                                   Color bgColor)
+    {
+        SurfaceData sd = super.replaceData(srcData, txtype, comp, bgColor);
+        OGLTextureCache.Entry e = cacheEntry;
+        if (sd != srcData && e != null) {
+            OGLTextureCache.touch(e);
+        }
+        return sd;
+    }
+
+    @Override
+    public void flush() {
+        OGLTextureCache.release(this);
+        super.flush();
+    }
+
     @Override
     public boolean isSupportedOperation(SurfaceData srcData,
                                         int txtype,
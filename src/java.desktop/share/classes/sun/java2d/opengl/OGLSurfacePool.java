@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.security.AccessController;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import sun.awt.image.BufImgSurfaceData;
+import sun.java2d.SurfaceData;
+import sun.security.action.GetPropertyAction;
+
+/**
+ * A pool of the intermediate (system memory) surfaces used by the general
+ * OGL blit loops (see OGLGeneralBlit, OGLGeneralTransformedBlit,
+ * OGLAnyCompositeBlit and OGLSurfaceToSwBlit), shared by all the loops and
+ * threads.  The surfaces are bucketed by BufferedImage type and by size
+ * class (the power of two above each dimension), so that a surface can be
+ * reused for any smaller region of the same class.  Each bucket is a
+ * lock-free queue, so concurrent callers do not serialize.
+ *
+ * The pooled surfaces are softly referenced, so the garbage collector may
+ * evict them under memory pressure (the evicted entries are expunged from
+ * their bucket, and from the budget, once their reference is enqueued),
+ * and a surface is not returned to the pool if the pool would then exceed
+ * its budget, set in megabytes by the
+ * sun.java2d.opengl.surfacePool system property (0 disables the pool).
+ * Surfaces larger than MAX_POOLED_SIZE are allocated with their exact size
+ * and never pooled.
+ */
+final class OGLSurfacePool {
+
+    /** The smallest size class. */
+    private static final int MIN_SIZE = 16;
+
+    /** The largest pooled dimension. */
+    static final int MAX_POOLED_SIZE = 2048;
+
+    /** The default budget (in megabytes). */
+    private static final int DEFAULT_BUDGET = 16;
+
+    private static final long maxBytes;
+
+    static {
+        String value = AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.opengl.surfacePool"));
+        int budget = DEFAULT_BUDGET;
+        if (value != null) {
+            try {
+                budget = Math.max(0, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid surface pool budget: " + value);
+            }
+        }
+        maxBytes = budget * 1024L * 1024L;
+    }
+
+    private static final class Entry extends SoftReference<SurfaceData> {
+        final Integer key;
+        final long bytes;
+        /** Set once the bytes have been subtracted from pooledBytes. */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Entry(SurfaceData sd, Integer key, long bytes) {
+            super(sd, clearedEntries);
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Subtracts the bytes of this entry from pooledBytes, unless it has
+         * already been done; returns true if this call did it.
+         */
+        boolean release() {
+            if (released.compareAndSet(false, true)) {
+                pooledBytes.addAndGet(-bytes);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** The entries whose surface has been evicted by the collector. */
+    private static final ReferenceQueue<SurfaceData> clearedEntries =
+        new ReferenceQueue<SurfaceData>();
+
+    private static final ConcurrentHashMap<Integer,
+                                           ConcurrentLinkedQueue<Entry>>
+        buckets = new ConcurrentHashMap<Integer,
+                                        ConcurrentLinkedQueue<Entry>>();
+
+    /** The bytes held by the pooled surfaces. */
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    // statistics
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder rejects = new LongAdder();
+
+    private OGLSurfacePool() {
+    }
+
+    /**
+     * Returns the size class of the given dimension, or -1 if it is too
+     * large to be pooled.
+     */
+    private static int getSizeClass(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        return Math.max(MIN_SIZE, Integer.highestOneBit(size - 1) << 1);
+    }
+
+    private static Integer getKey(int cw, int ch, int type) {
+        return (type << 16) |
+               (Integer.numberOfTrailingZeros(cw) << 8) |
+               Integer.numberOfTrailingZeros(ch);
+    }
+
+    /**
+     * Removes the entries evicted by the garbage collector from their
+     * bucket and from the budget, so that the buckets that are not
+     * visited again do not exhaust the budget.
+     */
+    private static void expungeClearedEntries() {
+        Reference<? extends SurfaceData> ref;
+        while ((ref = clearedEntries.poll()) != null) {
+            Entry e = (Entry)ref;
+            if (e.release()) {
+                evictions.increment();
+                ConcurrentLinkedQueue<Entry> bucket = buckets.get(e.key);
+                if (bucket != null) {
+                    bucket.remove(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an intermediate surface of the given BufferedImage type, at
+     * least w x h pixels large, whose content is undefined.  The surface
+     * must be returned with checkin() once it is no longer used.
+     */
+    static SurfaceData checkout(int w, int h, int type) {
+        int cw = getSizeClass(w);
+        int ch = getSizeClass(h);
+        if (maxBytes == 0L || cw < 0 || ch < 0) {
+            misses.increment();
+            return createData(w, h, type);
+        }
+        expungeClearedEntries();
+        ConcurrentLinkedQueue<Entry> bucket =
+            buckets.get(getKey(cw, ch, type));
+        if (bucket != null) {
+            Entry e;
+            while ((e = bucket.poll()) != null) {
+                SurfaceData sd = e.get();
+                boolean released = e.release();
+                if (sd != null) {
+                    hits.increment();
+                    return sd;
+                }
+                if (released) {
+                    // cleared by the garbage collector, not expunged yet
+                    evictions.increment();
+                }
+            }
+        }
+        misses.increment();
+        return createData(cw, ch, type);
+    }
+
+    private static SurfaceData createData(int w, int h, int type) {
+        return BufImgSurfaceData.createData(new BufferedImage(w, h, type));
+    }
+
+    /**
+     * Returns the given surface, obtained from checkout() with the given
+     * BufferedImage type, to the pool.
+     */
+    static void checkin(SurfaceData sd, int type) {
+        Rectangle r = sd.getBounds();
+        if (maxBytes == 0L ||
+            getSizeClass(r.width) != r.width ||
+            getSizeClass(r.height) != r.height)
+        {
+            // not pooled
+            return;
+        }
+        expungeClearedEntries();
+        // estimated with 4 bytes per pixel (the pool only holds int types)
+        long bytes = 4L * r.width * r.height;
+        if (pooledBytes.addAndGet(bytes) > maxBytes) {
+            pooledBytes.addAndGet(-bytes);
+            rejects.increment();
+            return;
+        }
+        Integer key = getKey(r.width, r.height, type);
+        ConcurrentLinkedQueue<Entry> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ConcurrentLinkedQueue<Entry>();
+            ConcurrentLinkedQueue<Entry> prev =
+                buckets.putIfAbsent(key, bucket);
+            if (prev != null) {
+                bucket = prev;
+            }
+        }
+        bucket.offer(new Entry(sd, key, bytes));
+    }
+
+    static void dump(PrintStream ps) {
+        ps.println("OGL intermediate surface pool:");
+        ps.println("  budget=" + maxBytes +
+                   " pooled bytes=" + pooledBytes.get() +
+                   " buckets=" + buckets.size());
+        ps.println("  hits=" + hits.sum() +
+                   " misses=" + misses.sum() +
+                   " evictions=" + evictions.sum() +
+                   " rejects=" + rejects.sum());
+    }
+}
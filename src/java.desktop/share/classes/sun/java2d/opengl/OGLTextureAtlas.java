@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.awt.AlphaComposite;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import sun.awt.image.BufImgSurfaceData;
+import sun.java2d.SurfaceData;
+import sun.java2d.loops.Blit;
+import sun.java2d.loops.CompositeType;
+import sun.java2d.loops.SurfaceType;
+
+/**
+ * Packs small managed images into shared textures (pages), so that drawing
+ * many small images (e.g. the icons of a tree or a table) does not switch
+ * textures for each image.  The atlas is only used if the
+ * sun.java2d.opengl.atlas system property is set to true.
+ *
+ * OGLSurfaceDataProxy caches an eligible image (at most MAX_ENTRY_SIZE
+ * pixels wide and high, and rarely changing) in a Region of a page rather
+ * than in a texture of its own.  A Region is a SurfaceData of type
+ * OpenGLAtlasTexture, a subtype of OpenGLTexture, so the texture loops of
+ * OGLBlitLoops handle it; OGLBlitLoops.Blit() and IsoBlit() substitute
+ * the page for the region, and offset the coordinates by the location of
+ * the region in the page.  Hence all the draws of the images of a page
+ * refer to the same texture.
+ *
+ * The regions of a page are allocated in shelves (rows of a fixed height),
+ * and each region is followed by a transparent gutter of one pixel, so
+ * that filtered draws do not sample the neighbouring images.  The space
+ * of a region is released when its proxy flushes it, and reused by the
+ * next regions of the same shelf; a page whose regions are all released
+ * is reset.
+ *
+ * A region cannot be used by the operations sampling the whole texture of
+ * an image, such as a TexturePaint (which repeats the texture) or a
+ * BufferedImageOp (which samples past the edges of the image): such
+ * operations get the source surface through getTextureSource(), which
+ * excludes the image from the atlas, so that it gets a texture of its own.
+ */
+final class OGLTextureAtlas {
+
+    /** The width and height (in pixels) of a page. */
+    static final int PAGE_SIZE = 1024;
+
+    /** The largest width and height (in pixels) of an image in a page. */
+    static final int MAX_ENTRY_SIZE = 64;
+
+    /** The granularity (in pixels) of the shelf heights. */
+    private static final int SHELF_ALIGNMENT = 8;
+
+    private static final String DESC_OPENGL_ATLAS_TEXTURE =
+        "OpenGL Atlas Texture";
+
+    public static final SurfaceType OpenGLAtlasTexture =
+        OGLSurfaceData.OpenGLTexture.deriveSubType(DESC_OPENGL_ATLAS_TEXTURE);
+
+    private static boolean atlasEnabled;
+
+    static {
+        String atlas = java.security.AccessController.doPrivileged(
+            new sun.security.action.GetPropertyAction(
+                "sun.java2d.opengl.atlas"));
+        atlasEnabled = "true".equals(atlas);
+    }
+
+    /** The atlases, per native GraphicsConfig info. */
+    private static final HashMap<Long, OGLTextureAtlas> atlases =
+        new HashMap<Long, OGLTextureAtlas>();
+
+    /** Transparent pixels, used to clear the gutters. */
+    private static SurfaceData clearData;
+
+    /** The (system memory) surfaces of the images excluded from the atlas. */
+    private static final Map<SurfaceData, Boolean> excluded =
+        Collections.synchronizedMap(new WeakHashMap<SurfaceData, Boolean>());
+
+    /**
+     * The cached image of a proxy, within a page.
+     */
+    static final class Region extends SurfaceData {
+        private final Page page;
+        private final Shelf shelf;
+        private final int x, y, width, height;
+        private boolean released;
+        /** The proxy caching its image in this region. */
+        OGLSurfaceDataProxy owner;
+
+        Region(Page page, Shelf shelf, int x, int y, int width, int height) {
+            super(OpenGLAtlasTexture, page.sd.getColorModel());
+            this.page = page;
+            this.shelf = shelf;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        /** Returns the texture holding this region. */
+        OGLSurfaceData getPage() {
+            return page.sd;
+        }
+
+        /** Returns the location of this region in the page. */
+        int getX() {
+            return x;
+        }
+
+        int getY() {
+            return y;
+        }
+
+        @Override
+        public SurfaceData getReplacement() {
+            return page.sd.getReplacement();
+        }
+
+        @Override
+        public GraphicsConfiguration getDeviceConfiguration() {
+            return page.sd.getDeviceConfiguration();
+        }
+
+        @Override
+        public Raster getRaster(int x, int y, int w, int h) {
+            throw new InternalError("not implemented yet");
+        }
+
+        @Override
+        public Rectangle getBounds() {
+            return new Rectangle(width, height);
+        }
+
+        @Override
+        public Object getDestination() {
+            return page.sd.getDestination();
+        }
+
+        @Override
+        public boolean isSurfaceLost() {
+            return !page.sd.isValid() || page.sd.isSurfaceLost();
+        }
+
+        /**
+         * Releases the space of this region; the pixels are only
+         * overwritten by the operations enqueued later.
+         */
+        @Override
+        public void flush() {
+            invalidate();
+            page.atlas.release(this);
+        }
+    }
+
+    /** A row of regions of the same height. */
+    private static final class Shelf {
+        final int y, height;
+        int x;
+        /** The released spans, as (x << 16 | width) values. */
+        final ArrayList<Integer> free = new ArrayList<Integer>();
+
+        Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+
+        /**
+         * Allocates a span of the given width, and returns its x
+         * coordinate, or -1 if the shelf is full.
+         */
+        int allocate(int w) {
+            for (int i = 0; i < free.size(); i++) {
+                int span = free.get(i);
+                int sw = span & 0xffff;
+                if (sw >= w) {
+                    int sx = span >>> 16;
+                    if (sw > w) {
+                        free.set(i, ((sx + w) << 16) | (sw - w));
+                    } else {
+                        free.remove(i);
+                    }
+                    return sx;
+                }
+            }
+            if (x + w > PAGE_SIZE) {
+                return -1;
+            }
+            int sx = x;
+            x += w;
+            return sx;
+        }
+    }
+
+    /** A shared texture. */
+    private static final class Page {
+        final OGLTextureAtlas atlas;
+        final OGLSurfaceData sd;
+        final int transparency;
+        final ArrayList<Shelf> shelves = new ArrayList<Shelf>();
+        int shelfTop;
+        int regions;
+
+        Page(OGLTextureAtlas atlas, OGLSurfaceData sd, int transparency) {
+            this.atlas = atlas;
+            this.sd = sd;
+            this.transparency = transparency;
+        }
+
+        /**
+         * Allocates a cell of w x h pixels (including the gutter), and
+         * returns the region, or null if the page is full.
+         */
+        Region allocate(int w, int h) {
+            // use the first shelf that is high enough without wasting
+            // more than a third of its height
+            for (Shelf s : shelves) {
+                if (s.height >= h && s.height * 2 <= h * 3) {
+                    int sx = s.allocate(w);
+                    if (sx >= 0) {
+                        regions++;
+                        return new Region(this, s, sx, s.y, w - 1, h - 1);
+                    }
+                }
+            }
+            int sh = (h + SHELF_ALIGNMENT - 1) & -SHELF_ALIGNMENT;
+            if (shelfTop + sh > PAGE_SIZE) {
+                return null;
+            }
+            Shelf s = new Shelf(shelfTop, sh);
+            shelfTop += sh;
+            shelves.add(s);
+            int sx = s.allocate(w);
+            regions++;
+            return new Region(this, s, sx, s.y, w - 1, h - 1);
+        }
+
+        void release(Region r) {
+            r.shelf.free.add((r.x << 16) | (r.width + 1));
+            if (--regions == 0) {
+                shelves.clear();
+                shelfTop = 0;
+            }
+        }
+    }
+
+    private final OGLGraphicsConfig gc;
+    private final ArrayList<Page> pages = new ArrayList<Page>();
+
+    // statistics
+    private long allocations, releases, rejects;
+
+    private OGLTextureAtlas(OGLGraphicsConfig gc) {
+        this.gc = gc;
+    }
+
+    /**
+     * Returns true if an image of the given size may be cached in the
+     * atlas.
+     */
+    static boolean isEligible(int w, int h) {
+        return atlasEnabled && w <= MAX_ENTRY_SIZE && h <= MAX_ENTRY_SIZE;
+    }
+
+    /**
+     * Returns true if the image of the given (system memory) surface has
+     * been excluded from the atlas (see getTextureSource()).
+     */
+    static boolean isExcluded(SurfaceData srcData) {
+        return !excluded.isEmpty() && excluded.containsKey(srcData);
+    }
+
+    /**
+     * Returns the source surface of the given image for an operation that
+     * samples its whole texture, as SurfaceData.getSourceSurfaceData()
+     * does.  If the image is cached in a region, it is excluded from the
+     * atlas: the proxy owning the region is flushed, so that the image is
+     * cached in a texture of its own from now on.
+     */
+    static SurfaceData getTextureSource(SurfaceData dstData,
+                                        BufferedImage img,
+                                        int txtype, CompositeType comp)
+    {
+        SurfaceData srcData =
+            dstData.getSourceSurfaceData(img, txtype, comp, null);
+        if (srcData instanceof Region) {
+            SurfaceData imgData = SurfaceData.getPrimarySurfaceData(img);
+            if (imgData != null) {
+                excluded.put(imgData, Boolean.TRUE);
+            }
+            OGLSurfaceDataProxy owner = ((Region)srcData).owner;
+            if (owner != null) {
+                owner.flush();
+            }
+            srcData = dstData.getSourceSurfaceData(img, txtype, comp, null);
+        }
+        return srcData;
+    }
+
+    /**
+     * Returns a region of w x h pixels with the given transparency in a
+     * page of the atlas of the given GraphicsConfig, for the given proxy,
+     * or null if no page can hold it.
+     */
+    static Region allocate(OGLGraphicsConfig gc, OGLSurfaceDataProxy owner,
+                           int w, int h, int transparency)
+    {
+        OGLTextureAtlas atlas;
+        synchronized (atlases) {
+            Long key = gc.getNativeConfigInfo();
+            atlas = atlases.get(key);
+            if (atlas == null) {
+                atlas = new OGLTextureAtlas(gc);
+                atlases.put(key, atlas);
+            }
+        }
+        Region r = atlas.allocateRegion(w, h, transparency);
+        if (r != null) {
+            r.owner = owner;
+            clearGutter(r);
+        }
+        return r;
+    }
+
+    /**
+     * Forgets the atlas of the given native GraphicsConfig info, which is
+     * being disposed (along with the textures of its pages).
+     */
+    static void dispose(long pConfigInfo) {
+        OGLTextureAtlas atlas;
+        synchronized (atlases) {
+            atlas = atlases.remove(pConfigInfo);
+        }
+        if (atlas != null) {
+            synchronized (atlas) {
+                for (Page page : atlas.pages) {
+                    page.sd.invalidate();
+                }
+                atlas.pages.clear();
+            }
+        }
+    }
+
+    private synchronized Region allocateRegion(int w, int h,
+                                               int transparency)
+    {
+        for (Page page : pages) {
+            if (page.transparency == transparency) {
+                Region r = page.allocate(w + 1, h + 1);
+                if (r != null) {
+                    allocations++;
+                    return r;
+                }
+            }
+        }
+        SurfaceData sd;
+        try {
+            sd = gc.createManagedSurface(PAGE_SIZE, PAGE_SIZE, transparency);
+        } catch (OutOfMemoryError e) {
+            sd = null;
+        }
+        if (!(sd instanceof OGLSurfaceData)) {
+            rejects++;
+            return null;
+        }
+        Page page = new Page(this, (OGLSurfaceData)sd, transparency);
+        pages.add(page);
+        allocations++;
+        return page.allocate(w + 1, h + 1);
+    }
+
+    private synchronized void release(Region r) {
+        if (!r.released) {
+            r.released = true;
+            releases++;
+            r.page.release(r);
+        }
+    }
+
+    /**
+     * Clears the gutter (the column on the right and the row below) of
+     * the given region, as it may hold the pixels of a released region.
+     */
+    private static void clearGutter(Region r) {
+        SurfaceData clear;
+        synchronized (atlases) {
+            if (clearData == null) {
+                clearData = BufImgSurfaceData.createData(
+                    new BufferedImage(MAX_ENTRY_SIZE + 1, MAX_ENTRY_SIZE + 1,
+                                      BufferedImage.TYPE_INT_ARGB_PRE));
+            }
+            clear = clearData;
+        }
+        Blit blit = Blit.getFromCache(clear.getSurfaceType(),
+                                      CompositeType.SrcNoEa,
+                                      OpenGLAtlasTexture);
+        blit.Blit(clear, r, AlphaComposite.Src, null,
+                  0, 0, r.width, 0, 1, r.height + 1);
+        blit.Blit(clear, r, AlphaComposite.Src, null,
+                  0, 0, 0, r.height, r.width, 1);
+    }
+
+    static void dump(PrintStream ps) {
+        synchronized (atlases) {
+            for (OGLTextureAtlas atlas : atlases.values()) {
+                synchronized (atlas) {
+                    ps.println("Texture atlas for config 0x" +
+                               Long.toHexString(
+                                   atlas.gc.getNativeConfigInfo()) + ":");
+                    ps.println("  pages=" + atlas.pages.size() +
+                               " allocations=" + atlas.allocations +
+                               " releases=" + atlas.releases +
+                               " rejects=" + atlas.rejects);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.io.PrintStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import sun.security.action.GetPropertyAction;
+
+/**
+ * Keeps track of the textures cached by the OGLSurfaceDataProxy instances
+ * (the managed images), and keeps the (estimated) video memory they hold
+ * within a budget, set in megabytes by the sun.java2d.opengl.textureCache
+ * system property (0 means no budget).  Before a new texture is created,
+ * the textures that are the least likely to be drawn again are flushed
+ * until the new one fits; their proxies will upload them again if they
+ * are drawn later.
+ *
+ * The victims are chosen by draw frequency, with dynamic aging: a texture
+ * is given a priority equal to the current age of the cache plus the
+ * number of times it was drawn, the texture with the lowest priority is
+ * evicted first (the least recently drawn one among equals), and the age
+ * of the cache becomes the priority of the last victim.  Hence frequently
+ * drawn textures survive a burst of new images, but not forever once they
+ * are no longer drawn.  Recording a draw does not take any lock.
+ *
+ * If the creation of a texture fails anyway (e.g. because other surfaces
+ * use the video memory), half of the cached textures are evicted and the
+ * creation is retried once, rather than leaving the image on the software
+ * path.
+ */
+final class OGLTextureCache {
+
+    /** The default budget (in megabytes). */
+    private static final int DEFAULT_BUDGET = 256;
+
+    private static final long maxBytes;
+
+    static {
+        String value = AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.opengl.textureCache"));
+        int budget = DEFAULT_BUDGET;
+        if (value != null) {
+            try {
+                budget = Math.max(0, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid texture cache budget: " + value);
+            }
+        }
+        maxBytes = budget * 1024L * 1024L;
+    }
+
+    /**
+     * The cache entry of a proxy.  The proxy is only weakly referenced:
+     * once it is collected, its texture is disposed along with its cached
+     * surface, and the entry is dropped.
+     */
+    static final class Entry extends WeakReference<OGLSurfaceDataProxy> {
+        /** The estimated size of the texture (guarded by the cache). */
+        long bytes;
+        /** True while the entry is accounted (guarded by the cache). */
+        boolean cached;
+        /** The draw count and the eviction priority (racy hints). */
+        volatile int draws;
+        volatile long priority;
+        volatile long lastDrawn;
+
+        Entry(OGLSurfaceDataProxy proxy, ReferenceQueue<Object> queue) {
+            super(proxy, queue);
+        }
+    }
+
+    private static final Object lock = new Object();
+    private static final ReferenceQueue<Object> collected =
+        new ReferenceQueue<Object>();
+    private static final HashSet<Entry> entries = new HashSet<Entry>();
+
+    /** The priority of the last victim. */
+    private static volatile long age;
+
+    private static long occupiedBytes, highWaterBytes;
+
+    // statistics
+    private static final LongAdder draws = new LongAdder();
+    private static long uploads, reuploads, evictions, evictedBytes,
+                        failures;
+
+    private OGLTextureCache() {
+    }
+
+    /**
+     * Accounts the texture of w x h pixels about to be created for the
+     * given proxy, evicting other textures as needed to stay within the
+     * budget.
+     */
+    static void reserve(OGLSurfaceDataProxy proxy, int w, int h) {
+        long bytes = 4L * w * h;
+        ArrayList<Entry> victims = null;
+        synchronized (lock) {
+            purge();
+            Entry e = proxy.cacheEntry;
+            if (e == null) {
+                e = new Entry(proxy, collected);
+                proxy.cacheEntry = e;
+            } else if (e.draws > 0) {
+                // the texture was evicted (or flushed) while still drawn
+                reuploads++;
+            }
+            if (e.cached) {
+                occupiedBytes -= e.bytes;
+            } else {
+                entries.add(e);
+                e.cached = true;
+            }
+            uploads++;
+            e.bytes = bytes;
+            e.priority = age;
+            e.lastDrawn = System.nanoTime();
+            if (maxBytes > 0L && occupiedBytes + bytes > maxBytes) {
+                victims = evict(e, occupiedBytes + bytes - maxBytes);
+            }
+            occupiedBytes += bytes;
+            if (occupiedBytes > highWaterBytes) {
+                highWaterBytes = occupiedBytes;
+            }
+        }
+        flush(victims);
+    }
+
+    /**
+     * Evicts half of the cached textures (in bytes) other than the one of
+     * the given proxy, after its creation failed.  Returns false if there
+     * was nothing to evict, so the creation should not be retried.
+     */
+    static boolean shrink(OGLSurfaceDataProxy proxy) {
+        ArrayList<Entry> victims;
+        synchronized (lock) {
+            failures++;
+            purge();
+            Entry e = proxy.cacheEntry;
+            long others = occupiedBytes;
+            if (e != null && e.cached) {
+                others -= e.bytes;
+            }
+            if (others <= 0L) {
+                return false;
+            }
+            victims = evict(e, (others + 1L) / 2L);
+        }
+        flush(victims);
+        return true;
+    }
+
+    /**
+     * Stops accounting the texture of the given proxy, which has been (or
+     * is about to be) flushed.
+     */
+    static void release(OGLSurfaceDataProxy proxy) {
+        synchronized (lock) {
+            Entry e = proxy.cacheEntry;
+            if (e != null && e.cached) {
+                remove(e);
+            }
+        }
+    }
+
+    /**
+     * Records that the texture of the given entry was drawn.
+     */
+    static void touch(Entry e) {
+        int n = e.draws + 1;
+        e.draws = n;
+        e.priority = age + n;
+        e.lastDrawn = System.nanoTime();
+        draws.increment();
+    }
+
+    /**
+     * An eviction candidate: the priority and draw time of an entry are
+     * updated without holding the lock (see touch()), so they are captured
+     * once when the candidates are ordered.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+        final Entry entry;
+        final long priority;
+        final long lastDrawn;
+
+        Candidate(Entry entry) {
+            this.entry = entry;
+            this.priority = entry.priority;
+            this.lastDrawn = entry.lastDrawn;
+        }
+
+        public int compareTo(Candidate other) {
+            if (priority != other.priority) {
+                return (priority < other.priority) ? -1 : 1;
+            }
+            return Long.compare(lastDrawn, other.lastDrawn);
+        }
+    }
+
+    /**
+     * Removes the entries with the lowest priorities, other than the given
+     * one, until the given number of bytes has been released, and returns
+     * them so that their proxies are flushed once the lock is released.
+     */
+    private static ArrayList<Entry> evict(Entry keep, long needed) {
+        ArrayList<Candidate> candidates =
+            new ArrayList<Candidate>(entries.size());
+        for (Entry e : entries) {
+            if (e != keep) {
+                candidates.add(new Candidate(e));
+            }
+        }
+        PriorityQueue<Candidate> queue =
+            new PriorityQueue<Candidate>(candidates);
+        ArrayList<Entry> victims = new ArrayList<Entry>();
+        while (needed > 0L && !queue.isEmpty()) {
+            Candidate c = queue.poll();
+            Entry victim = c.entry;
+            remove(victim);
+            age = Math.max(age, c.priority);
+            needed -= victim.bytes;
+            evictions++;
+            evictedBytes += victim.bytes;
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    private static void flush(ArrayList<Entry> victims) {
+        if (victims == null) {
+            return;
+        }
+        for (Entry e : victims) {
+            OGLSurfaceDataProxy proxy = e.get();
+            if (proxy != null) {
+                proxy.flush();
+            }
+        }
+    }
+
+    private static void remove(Entry e) {
+        entries.remove(e);
+        e.cached = false;
+        occupiedBytes -= e.bytes;
+    }
+
+    /**
+     * Drops the entries of the collected proxies.
+     */
+    private static void purge() {
+        Object ref;
+        while ((ref = collected.poll()) != null) {
+            Entry e = (Entry)ref;
+            if (e.cached) {
+                remove(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the (estimated) video memory held by the cached textures.
+     */
+    static long getOccupiedBytes() {
+        synchronized (lock) {
+            purge();
+            return occupiedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of textures evicted so far.
+     */
+    static long getEvictionCount() {
+        synchronized (lock) {
+            return evictions;
+        }
+    }
+
+    static void dump(PrintStream ps) {
+        synchronized (lock) {
+            purge();
+            ps.println("OGL managed texture cache:");
+            ps.println("  budget=" + maxBytes +
+                       " occupied bytes=" + occupiedBytes +
+                       " high-water bytes=" + highWaterBytes +
+                       " textures=" + entries.size());
+            ps.println("  draws=" + draws.sum() +
+                       " uploads=" + uploads +
+                       " reuploads=" + reuploads +
+                       " evictions=" + evictions +
+                       " evicted bytes=" + evictedBytes +
+                       " failed creations=" + failures);
+        }
+    }
+}
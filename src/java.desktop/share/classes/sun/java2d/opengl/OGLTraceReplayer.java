@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.opengl;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.VolatileImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import sun.java2d.SurfaceData;
+import sun.java2d.pipe.RenderBuffer;
+import sun.java2d.pipe.RenderQueueTrace;
+
+import static sun.java2d.pipe.hw.AccelSurface.TEXTURE;
+import static sun.java2d.opengl.OGLSurfaceData.FBOBJECT;
+
+/**
+ * Standalone replayer of the traces recorded by the OGLRenderQueue when
+ * the sun.java2d.queuetrace system property is set (see RenderQueueTrace).
+ * It must be run with the OpenGL pipeline enabled, e.g. against a headless
+ * X server (Xvfb) and a software OpenGL implementation (Mesa):
+ *
+ *     java -Dsun.java2d.opengl=true \
+ *          --add-exports java.desktop/sun.java2d.opengl=ALL-UNNAMED \
+ *          sun.java2d.opengl.OGLTraceReplayer trace.bin [iterations]
+ *
+ * The surfaces recorded in the trace (textures and FBOs) are re-created
+ * with the same size and opacity, and the batches are relocated to use
+ * them before being processed by the native flushing code, one batch per
+ * synchronous flush.  The operations which cannot be replayed (see
+ * RenderQueueTrace.Relocation) are skipped.  The elapsed time is reported
+ * for each iteration, so the trace can be used as a deterministic
+ * benchmark of the native pipeline.
+ */
+public final class OGLTraceReplayer implements RenderQueueTrace.Relocator {
+
+    private final GraphicsConfiguration gc;
+    private final OGLGraphicsConfig oglgc;
+    private final OGLRenderQueue rq;
+
+    /** The replay surfaces, indexed by the traced native ops pointer. */
+    private final HashMap<Long, SurfaceData> surfaces =
+        new HashMap<Long, SurfaceData>();
+    /** Keeps the images backing the replay surfaces alive. */
+    private final ArrayList<VolatileImage> images =
+        new ArrayList<VolatileImage>();
+    /** Relocates the batches, in order, to the replay surfaces. */
+    private final RenderQueueTrace.Relocation relocation =
+        new RenderQueueTrace.Relocation(this);
+
+    private long batches, bytes, skippedBatches, undecodedBytes;
+
+    private OGLTraceReplayer(GraphicsConfiguration gc) {
+        this.gc = gc;
+        this.oglgc = (OGLGraphicsConfig)gc;
+        this.rq = OGLRenderQueue.getInstance();
+    }
+
+    @Override
+    public long relocateSurface(long pData) {
+        SurfaceData sd = surfaces.get(pData);
+        return (sd != null) ? sd.getNativeOps() : 0L;
+    }
+
+    @Override
+    public long relocateConfig(long pConfigInfo) {
+        return oglgc.getNativeConfigInfo();
+    }
+
+    private void createSurface(RenderQueueTrace.Reader reader) {
+        int w = reader.getSurfaceWidth();
+        int h = reader.getSurfaceHeight();
+        int transparency = reader.isSurfaceOpaque() ?
+            Transparency.OPAQUE : Transparency.TRANSLUCENT;
+        SurfaceData sd;
+        try {
+            switch (reader.getSurfaceType()) {
+            case TEXTURE:
+                sd = oglgc.createManagedSurface(w, h, transparency);
+                break;
+            case FBOBJECT:
+                VolatileImage img =
+                    gc.createCompatibleVolatileImage(w, h, transparency);
+                images.add(img);
+                sd = SurfaceData.getPrimarySurfaceData(img);
+                break;
+            default:
+                sd = null;
+                break;
+            }
+        } catch (OutOfMemoryError e) {
+            sd = null;
+        }
+        if (sd != null) {
+            surfaces.put(reader.getSurfaceData(), sd);
+        }
+    }
+
+    private void replayBatch(RenderQueueTrace.Reader reader, byte[] batch) {
+        int size = reader.getBatchSize();
+        rq.lock();
+        try {
+            RenderBuffer buf = rq.getBuffer();
+            if (size + 4 > buf.capacity()) {
+                // recorded with a larger queue buffer
+                skippedBatches++;
+                return;
+            }
+            reader.getBatch(batch);
+            // the 8-byte values of the batch must stay aligned: the
+            // batches are recorded so as to start at an 8-byte aligned
+            // position (see RenderQueueTrace.recordBatch())
+            rq.ensureCapacityAndAlignment(size, 0);
+            int start = buf.position();
+            buf.put(batch, 0, size);
+            int decoded = relocation.relocate(buf.getAddress() + start,
+                                              size);
+            buf.position(start + decoded);
+            undecodedBytes += size - decoded;
+            rq.flushNow();
+        } finally {
+            rq.unlock();
+        }
+        batches++;
+        bytes += size;
+    }
+
+    private void replay(String path) throws IOException {
+        RenderQueueTrace.Reader reader = new RenderQueueTrace.Reader(path);
+        byte[] batch = new byte[0];
+        int tag;
+        while ((tag = reader.next()) != RenderQueueTrace.TAG_END) {
+            switch (tag) {
+            case RenderQueueTrace.TAG_SURFACE:
+                createSurface(reader);
+                break;
+            case RenderQueueTrace.TAG_BATCH:
+                if (batch.length < reader.getBatchSize()) {
+                    batch = new byte[reader.getBatchSize()];
+                }
+                replayBatch(reader, batch);
+                break;
+            default:
+                // unknown record, skipped
+                break;
+            }
+        }
+    }
+
+    private void dispose() {
+        for (VolatileImage img : images) {
+            img.flush();
+        }
+        for (SurfaceData sd : surfaces.values()) {
+            sd.invalidate();
+        }
+        images.clear();
+        surfaces.clear();
+        OGLRenderQueue.sync();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: OGLTraceReplayer <trace file> " +
+                               "[iterations]");
+            System.exit(1);
+        }
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+        GraphicsConfiguration gc =
+            GraphicsEnvironment.getLocalGraphicsEnvironment().
+                getDefaultScreenDevice().getDefaultConfiguration();
+        if (!(gc instanceof OGLGraphicsConfig)) {
+            System.err.println("The OpenGL pipeline is not enabled " +
+                               "(use -Dsun.java2d.opengl=true)");
+            System.exit(1);
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            OGLTraceReplayer replayer = new OGLTraceReplayer(gc);
+            long start = System.nanoTime();
+            try {
+                replayer.replay(args[0]);
+                OGLRenderQueue.sync();
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                System.out.println("iteration " + i + ": " +
+                                   replayer.batches + " batches, " +
+                                   replayer.bytes + " bytes in " +
+                                   (elapsed / 1000000L) + " ms (" +
+                                   replayer.skippedBatches +
+                                   " batches skipped, " +
+                                   replayer.undecodedBytes +
+                                   " bytes undecoded)");
+                replayer.dispose();
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -28,6 +28,11 @@ package sun.java2d.opengl;
 import java.awt.Graphics;
 import java.awt.GraphicsConfiguration;
 import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
 import sun.java2d.SunGraphics2D;
 import sun.java2d.SurfaceData;
 import sun.java2d.pipe.Region;
@@ -121,6 +126,126 @@ class OGLUtilities {
         return true;
     }
 
+    /**
+     * Invokes the given Runnables on the OGL QueueFlusher thread, each with
+     * the OpenGL context corresponding to the Graphics object at the same
+     * index made current (see {@link #invokeWithOGLContextCurrent}), in a
+     * single flush of the OGL pipeline.  The Runnables are interleaved with
+     * the operations making the contexts current, so each Runnable may
+     * change the current OpenGL context: the context is reset before the
+     * next Runnable (without flushing the pipeline), and once all the
+     * Runnables have completed.
+     *
+     * In order to avoid deadlock, it is important that the given Runnables
+     * do not attempt to acquire the AWT lock.
+     *
+     * @param g the Graphics objects for the corresponding destination
+     * surfaces; a null element skips the step making a context current
+     * for the corresponding Runnable
+     * @param r the actions to be performed on the QFT, in order; cannot be
+     * null, and must have the same length as g
+     * @return true if the operations completed successfully, or false if
+     * any of the non-null Graphics objects is not associated with an OpenGL
+     * surface, in which case no Runnable is invoked
+     */
+    public static boolean invokeWithOGLContextCurrent(Graphics[] g,
+                                                      Runnable[] r)
+    {
+        if (g.length != r.length) {
+            throw new IllegalArgumentException("Mismatched lengths");
+        }
+        OGLSurfaceData[] surfaces = new OGLSurfaceData[g.length];
+        for (int i = 0; i < g.length; i++) {
+            if (g[i] != null) {
+                if (!(g[i] instanceof SunGraphics2D)) {
+                    return false;
+                }
+                SurfaceData sData = ((SunGraphics2D)g[i]).surfaceData;
+                if (!(sData instanceof OGLSurfaceData)) {
+                    return false;
+                }
+                surfaces[i] = (OGLSurfaceData)sData;
+            }
+        }
+
+        OGLRenderQueue rq = OGLRenderQueue.getInstance();
+        rq.lock();
+        try {
+            for (int i = 0; i < r.length; i++) {
+                if (i > 0) {
+                    // the previous runnable may have changed the current
+                    // context: reset it, in order with the runnables
+                    OGLContext.invalidateCurrentContext(false);
+                }
+                if (surfaces[i] != null) {
+                    // make a context current to the destination surface
+                    OGLContext.validateContext(surfaces[i]);
+                }
+                rq.addTask(r[i]);
+            }
+
+            // invalidate the current context so that the next time we render
+            // with Java 2D, the context state will be completely revalidated
+            OGLContext.invalidateCurrentContext(false);
+
+            // invoke the runnables on the QFT
+            rq.flushNow();
+        } finally {
+            rq.unlock();
+        }
+
+        return true;
+    }
+
+    /**
+     * Same as {@link #invokeWithOGLContextCurrent}, except that this method
+     * does not wait for the given Runnable to complete: it is invoked on
+     * the OGL QueueFlusher thread in order with the Java 2D operations
+     * (after those previously enqueued, and before those enqueued
+     * afterwards), so that mixed rendering does not require a synchronous
+     * flush of the OGL pipeline.  The context state is revalidated by the
+     * next Java 2D operation.
+     *
+     * @param g the Graphics object for the corresponding destination surface;
+     * if null, the step making a context current to the destination surface
+     * will be skipped
+     * @param r the action to be performed on the QFT; cannot be null
+     * @return true if the operation was enqueued successfully, or false if
+     * the given Graphics object is not associated with an OpenGL surface
+     */
+    public static boolean invokeWithOGLContextCurrentLater(Graphics g,
+                                                           Runnable r)
+    {
+        OGLRenderQueue rq = OGLRenderQueue.getInstance();
+        rq.lock();
+        try {
+            if (g != null) {
+                if (!(g instanceof SunGraphics2D)) {
+                    return false;
+                }
+                SurfaceData sData = ((SunGraphics2D)g).surfaceData;
+                if (!(sData instanceof OGLSurfaceData)) {
+                    return false;
+                }
+
+                // make a context current to the destination surface
+                OGLContext.validateContext((OGLSurfaceData)sData);
+            }
+
+            // invoke the given runnable on the QFT, after the current batch
+            rq.flushAndInvokeLater(r);
+
+            // invalidate the current context (in order with the runnable)
+            // so that the next time we render with Java 2D, the context
+            // state will be completely revalidated
+            OGLContext.invalidateCurrentContext(false);
+        } finally {
+            rq.unlock();
+        }
+
+        return true;
+    }
+
     /**
      * Invokes the given Runnable on the OGL QueueFlusher thread with the
      * "shared" OpenGL context (corresponding to the given
@@ -334,4 +459,102 @@ class OGLUtilities {
         }
         return ((OGLSurfaceData)sData).getTextureTarget();
     }
+
+    /**
+     * Enqueues the readback of the given region of the surface associated
+     * with the given Graphics object, without waiting for it to complete.
+     * The pixels can be collected later from the returned Future, as an
+     * IntArgbPre image; calling {@code get()} flushes the OGL pipeline
+     * only if the readback has not been processed yet, while
+     * {@code get(timeout, unit)} waits for the pipeline to process it.
+     *
+     * @param g the Graphics object for the corresponding source surface;
+     * cannot be null
+     * @param x the x coordinate of the region, in device space
+     * @param y the y coordinate of the region, in device space
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return the handle of the readback, or null if the given Graphics
+     * object is invalid (i.e. is not associated with an OpenGL surface)
+     * @throws IllegalArgumentException if the region is empty or does not
+     * lie within the bounds of the surface
+     */
+    public static Future<BufferedImage> readPixelsAsync(Graphics g,
+                                                        int x, int y,
+                                                        int w, int h)
+    {
+        List<Future<BufferedImage>> requests =
+            readPixelsAsync(g, new Rectangle[] { new Rectangle(x, y, w, h) });
+        return (requests != null) ? requests.get(0) : null;
+    }
+
+    /**
+     * Enqueues the readback of the given regions of the surface associated
+     * with the given Graphics object, without waiting for them to complete
+     * (see {@link #readPixelsAsync(Graphics, int, int, int, int)}).  All
+     * the regions are read back in the same batch, so collecting the first
+     * one flushes the OGL pipeline at most once.
+     *
+     * @param g the Graphics object for the corresponding source surface;
+     * cannot be null
+     * @param regions the regions to read back, in device space
+     * @return the handles of the readbacks (in the order of the regions),
+     * or null if the given Graphics object is invalid (i.e. is not
+     * associated with an OpenGL surface)
+     * @throws IllegalArgumentException if a region is empty or does not
+     * lie within the bounds of the surface
+     */
+    public static List<Future<BufferedImage>>
+        readPixelsAsync(Graphics g, Rectangle[] regions)
+    {
+        if (!(g instanceof SunGraphics2D)) {
+            return null;
+        }
+        SurfaceData sData = ((SunGraphics2D)g).surfaceData;
+        if (!(sData instanceof OGLSurfaceData)) {
+            return null;
+        }
+        OGLReadback readback = OGLRenderQueue.getInstance().getReadback();
+        return Arrays.<Future<BufferedImage>>asList(
+            readback.read((OGLSurfaceData)sData, regions));
+    }
+
+    /**
+     * Renders the given image to the surface associated with the given
+     * Graphics object at the given location, filtered through the given
+     * chain of BufferedImageOps (applied in order, like successive calls
+     * to {@code BufferedImageOp.filter()}).  The intermediate results
+     * stay in pooled render-to-texture surfaces, so only the result of the
+     * last op is rendered to the destination (with the current transform,
+     * clip and composite of the Graphics object), without any round trip
+     * through system memory.
+     *
+     * @param g the Graphics object for the corresponding destination
+     * surface; cannot be null
+     * @param img the image to render; cannot be null
+     * @param ops the ops to apply; cannot be null or empty
+     * @param x the x coordinate of the image, in user space
+     * @param y the y coordinate of the image, in user space
+     * @return true if the image was rendered, or false if nothing was
+     * rendered because the given Graphics object is invalid (i.e. is not
+     * associated with an OpenGL surface), or an op of the chain cannot be
+     * accelerated (in which case the caller should filter the image in
+     * software)
+     */
+    public static boolean drawImageWithOps(Graphics g, BufferedImage img,
+                                           BufferedImageOp[] ops,
+                                           int x, int y)
+    {
+        if (ops.length == 0) {
+            throw new IllegalArgumentException("No ops");
+        }
+        if (!(g instanceof SunGraphics2D)) {
+            return false;
+        }
+        SunGraphics2D sg2d = (SunGraphics2D)g;
+        if (!(sg2d.surfaceData instanceof OGLSurfaceData)) {
+            return false;
+        }
+        return OGLBufImgOps.renderImageWithOps(sg2d, img, ops, x, y);
+    }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+/**
+ * A FlushPolicy decides when the thread responsible for flushing a
+ * RenderQueue should automatically flush the operations pending on the
+ * queue (i.e. without an explicit flushNow() request from a producer).
+ *
+ * The flushing thread periodically samples the queue (every
+ * {@code getPollInterval()} milliseconds) and asks the policy whether the
+ * pending operations should be flushed, based on:
+ *   - the fill level of the buffer,
+ *   - the time elapsed since the first pending operation was observed,
+ *   - the time elapsed since the buffer was last observed to grow (if no
+ *     operation has been enqueued for a while, the producers are
+ *     considered idle and there is no point in waiting any longer).
+ * In addition, the policy tells whether frame boundaries (e.g. copies to
+ * an on-screen surface) should trigger a flush.
+ *
+ * A policy is described by a string which is either the name of one of
+ * the presets below, or a comma-separated list of {@code key=value}
+ * parameters, optionally preceded by a preset name used for the missing
+ * parameters (e.g. "interactive,latency=8").  The supported keys are
+ * {@code poll}, {@code latency} and {@code idle} (in milliseconds, zero
+ * disables the trigger), {@code fill} (percentage of the buffer capacity,
+ * zero disables the trigger) and {@code frame} (true or false).
+ *
+ * Presets:
+ *   default      - 10ms polling, flush after 100ms or when idle for 20ms
+ *   interactive  - low latency: 2ms polling, flush after 16ms, when idle
+ *                  for 4ms or when the buffer is 25% full
+ *   batch        - high throughput: 20ms polling, flush after 250ms or when
+ *                  the buffer is 75% full; frame boundaries do not flush
+ */
+public final class FlushPolicy {
+
+    public static final FlushPolicy DEFAULT =
+        new FlushPolicy("default", 10, 100, 20, 0, true);
+    public static final FlushPolicy INTERACTIVE =
+        new FlushPolicy("interactive", 2, 16, 4, 25, true);
+    public static final FlushPolicy BATCH =
+        new FlushPolicy("batch", 20, 250, 0, 75, false);
+
+    private final String name;
+    private final long pollInterval;
+    private final long maxLatency;
+    private final long idleTime;
+    private final int fillPercent;
+    private final boolean frameFlush;
+
+    private FlushPolicy(String name, long pollInterval, long maxLatency,
+                        long idleTime, int fillPercent, boolean frameFlush)
+    {
+        this.name = name;
+        this.pollInterval = Math.max(1, pollInterval);
+        this.maxLatency = maxLatency;
+        this.idleTime = idleTime;
+        this.fillPercent = fillPercent;
+        this.frameFlush = frameFlush;
+    }
+
+    /**
+     * Returns the policy described by the given string, or the
+     * {@code DEFAULT} policy if the string is null or malformed.
+     */
+    public static FlushPolicy parse(String spec) {
+        if (spec == null || spec.isEmpty()) {
+            return DEFAULT;
+        }
+        FlushPolicy base = DEFAULT;
+        String[] tokens = spec.split(",");
+        int first = 0;
+        if (tokens[0].indexOf('=') < 0) {
+            base = forName(tokens[0].trim());
+            if (base == null) {
+                System.err.println("Unknown flush policy: " + tokens[0]);
+                return DEFAULT;
+            }
+            first = 1;
+        }
+        if (first == tokens.length) {
+            return base;
+        }
+
+        long poll = base.pollInterval;
+        long latency = base.maxLatency;
+        long idle = base.idleTime;
+        int fill = base.fillPercent;
+        boolean frame = base.frameFlush;
+        try {
+            for (int i = first; i < tokens.length; i++) {
+                String token = tokens[i].trim();
+                int eq = token.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException(token);
+                }
+                String key = token.substring(0, eq).trim();
+                String value = token.substring(eq + 1).trim();
+                switch (key) {
+                case "poll":
+                    poll = Long.parseLong(value);
+                    break;
+                case "latency":
+                    latency = Long.parseLong(value);
+                    break;
+                case "idle":
+                    idle = Long.parseLong(value);
+                    break;
+                case "fill":
+                    fill = Math.min(100, Integer.parseInt(value));
+                    break;
+                case "frame":
+                    frame = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(key);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid flush policy: " + spec +
+                               " (" + e.getMessage() + ")");
+            return DEFAULT;
+        }
+        return new FlushPolicy(spec, poll, latency, idle, fill, frame);
+    }
+
+    private static FlushPolicy forName(String name) {
+        switch (name) {
+        case "default":
+            return DEFAULT;
+        case "interactive":
+            return INTERACTIVE;
+        case "batch":
+            return BATCH;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns the delay (in milliseconds) between two samples of the queue.
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Returns true if the flushing thread should flush the pending
+     * operations now.
+     *
+     * @param position current position of the buffer (in bytes)
+     * @param capacity capacity of the buffer (in bytes)
+     * @param pendingMillis time elapsed since the first pending operation
+     * was observed
+     * @param idleMillis time elapsed since the buffer was last observed
+     * to grow
+     */
+    public boolean shouldFlush(int position, int capacity,
+                               long pendingMillis, long idleMillis)
+    {
+        if (position <= 0) {
+            return false;
+        }
+        return (maxLatency > 0 && pendingMillis >= maxLatency) ||
+               (idleTime > 0 && idleMillis >= idleTime) ||
+               (fillPercent > 0 &&
+                position >= (long)capacity * fillPercent / 100);
+    }
+
+    /**
+     * Returns true if frame boundaries (e.g. copies to an on-screen
+     * surface) should trigger a flush of the queue.
+     */
+    public boolean isFrameFlushEnabled() {
+        return frameFlush;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy[" + name + ": poll=" + pollInterval +
+               "ms latency=" + maxLatency + "ms idle=" + idleTime +
+               "ms fill=" + fillPercent + "% frame=" + frameFlush + "]";
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import jdk.internal.misc.Unsafe;
+
+/**
+ * A chain of native memory segments holding operations spilled from the
+ * buffer of an elastic RenderQueue.  When an operation does not fit in the
+ * (small) buffer of the queue, the content of the buffer is copied to a
+ * new segment appended to the chain instead of being flushed, so the chain
+ * grows under bursty load; when the queue is flushed, the segments are
+ * processed in order before the buffer.  Processed segments are kept in a
+ * pool for reuse, and released once no segment has been needed for a
+ * while (see trim()), so the chain shrinks back when the load decreases.
+ * All methods must be called with the queue lock held.
+ */
+public final class RenderBufferChain {
+
+    /**
+     * Receives the segments of a chain when it is flushed.
+     */
+    public interface Target {
+        void flushSegment(long addr, int limit);
+    }
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    /**
+     * The pooled segments and statistics.
+     */
+    private static final class Pool {
+        final int segmentSize;
+        final int maxBytes;
+        final long idleNanos;
+        final ArrayList<Long> free = new ArrayList<Long>();
+        int allocated = 0;
+        long lastGrowth = 0L;
+
+        // statistics
+        long spills = 0L;
+        long rejectedSpills = 0L;
+        int highWaterBytes = 0;
+        int highWaterSegments = 0;
+
+        Pool(int segmentSize, int maxBytes, long idleMillis) {
+            this.segmentSize = segmentSize;
+            this.maxBytes = maxBytes;
+            this.idleNanos = idleMillis * 1000000L;
+        }
+    }
+
+    private final Pool pool;
+
+    /** The addresses and limits of the segments of this chain. */
+    private final ArrayList<Long> segments = new ArrayList<Long>();
+    private int[] limits = new int[16];
+    private int bytes = 0;
+
+    /**
+     * Creates a chain of segments of the given size, holding at most
+     * maxBytes bytes, whose pooled segments are released after idleMillis
+     * milliseconds without spill.
+     */
+    public RenderBufferChain(int segmentSize, int maxBytes, long idleMillis) {
+        pool = new Pool(segmentSize, maxBytes, idleMillis);
+    }
+
+    /**
+     * Returns the number of bytes held by this chain.  This value may be
+     * read without holding the queue lock, as a hint.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the maximum number of bytes held by a chain.
+     */
+    public int getMaxBytes() {
+        return pool.maxBytes;
+    }
+
+    /**
+     * Appends the content of the given buffer to this chain, and clears the
+     * buffer (but not the references of the queue).  Returns false if the
+     * chain is full, in which case the buffer is left unchanged.
+     */
+    public boolean spill(RenderBuffer buf) {
+        int limit = buf.position();
+        if (limit > pool.segmentSize || bytes + limit > pool.maxBytes) {
+            pool.rejectedSpills++;
+            return false;
+        }
+        if (limit > 0) {
+            long addr;
+            int n = pool.free.size();
+            if (n > 0) {
+                addr = pool.free.remove(n - 1);
+            } else {
+                addr = unsafe.allocateMemory(pool.segmentSize);
+                pool.allocated++;
+            }
+            unsafe.copyMemory(buf.getAddress(), addr, limit);
+            append(addr, limit);
+            pool.spills++;
+            pool.lastGrowth = System.nanoTime();
+            if (bytes > pool.highWaterBytes) {
+                pool.highWaterBytes = bytes;
+            }
+            if (segments.size() > pool.highWaterSegments) {
+                pool.highWaterSegments = segments.size();
+            }
+        }
+        buf.clear();
+        return true;
+    }
+
+    private void append(long addr, int limit) {
+        int n = segments.size();
+        if (n == limits.length) {
+            int[] newLimits = new int[n * 2];
+            System.arraycopy(limits, 0, newLimits, 0, n);
+            limits = newLimits;
+        }
+        segments.add(addr);
+        limits[n] = limit;
+        bytes += limit;
+    }
+
+    /**
+     * Passes the segments of this chain (in order) to the given target, and
+     * returns them to the pool, even if the target fails.
+     */
+    public void flush(Target target) {
+        try {
+            int n = segments.size();
+            for (int i = 0; i < n; i++) {
+                target.flushSegment(segments.get(i), limits[i]);
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Returns the segments of this chain to the pool, without processing
+     * them.
+     */
+    public void clear() {
+        pool.free.addAll(segments);
+        segments.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns true if some pooled segments could be released by trim().
+     */
+    public boolean isTrimDue() {
+        return !pool.free.isEmpty() &&
+               System.nanoTime() - pool.lastGrowth >= pool.idleNanos;
+    }
+
+    /**
+     * Releases the pooled segments if no segment has been needed during the
+     * idle period of the pool.
+     */
+    public void trim() {
+        if (!isTrimDue()) {
+            return;
+        }
+        for (Long addr : pool.free) {
+            unsafe.freeMemory(addr);
+        }
+        pool.allocated -= pool.free.size();
+        pool.free.clear();
+    }
+
+    public void dump(PrintStream ps, String name) {
+        Pool p = pool;
+        ps.println("RenderQueue elastic buffer for " + name + ":");
+        ps.println("  segment size=" + p.segmentSize +
+                   " max bytes=" + p.maxBytes +
+                   " allocated segments=" + p.allocated +
+                   " pooled segments=" + p.free.size());
+        ps.println("  spills=" + p.spills +
+                   " rejected spills=" + p.rejectedSpills +
+                   " high-water bytes=" + p.highWaterBytes +
+                   " high-water segments=" + p.highWaterSegments);
+    }
+}
@@ -25,9 +25,19 @@
 
 package sun.java2d.pipe;
 
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import jdk.internal.misc.Unsafe;
 import sun.awt.SunToolkit;
+import sun.awt.util.ThreadGroupUtils;
+import sun.java2d.InvalidPipeException;
+import sun.security.action.GetPropertyAction;
 
 /**
  * The RenderQueue class encapsulates a RenderBuffer on which rendering
@@ -68,24 +78,234 @@ import sun.awt.SunToolkit;
  *             rq.unlock();
  *         }
  *     }
+ *
+ * By default the queue lock is the AWT lock (see the implementation note
+ * in lock() below).  If the sun.java2d.queuelock system property is set to
+ * true, a dedicated queue lock is used instead, and the AWT lock is only
+ * acquired around the native flushes (see tryLockForFlush()).  The
+ * expected lock ordering is then the queue lock followed by the AWT lock;
+ * any thread acquiring the queue lock while already holding the AWT lock
+ * is reported on System.err (once per call site), and simply waits for the
+ * queue lock.  The flushing side backs off instead: the owner of the queue
+ * lock never blocks on the AWT lock, it only tries to acquire it, and
+ * otherwise hands the flush to the flushing thread.  If the owner of the
+ * queue lock waits for that flush, while the AWT lock is held by a thread
+ * waiting for the queue lock, the flush is processed under the AWT lock
+ * of the waiting thread (see isFlushLockLent()), exactly as if that thread
+ * had acquired the queue lock first and flushed the queue itself.
+ *
+ * If the sun.java2d.queuesegments system property is set to true, rendering
+ * threads may also enqueue operations on their own RenderSegment (see
+ * getSegment()) without acquiring the queue lock.  The published segments,
+ * and then the operations left on the closed segments, are merged into the
+ * buffer by the next thread acquiring the queue lock (or by the flushing
+ * thread), so an operation enqueued on a segment is always processed
+ * before any operation enqueued under the queue lock after the segment was
+ * closed.  The segments are only merged by the outermost lock(), so that
+ * the context validated within a critical section is never changed by
+ * a nested lock().
+ *
+ * If the sun.java2d.queuestats system property is set to true, the queue
+ * gathers statistics about its flushes and its lock (see getStats()),
+ * which are dumped on System.err when the VM exits.  Similarly, the
+ * sun.java2d.queueprofile system property enables a profiler decoding the
+ * operations of each flushed batch (see RenderQueueProfiler), and the
+ * sun.java2d.queuetrace system property enables the recording of the
+ * flushed batches into a trace file (see RenderQueueTrace).
+ *
+ * If the sun.java2d.elasticqueue system property is set to true, the
+ * queue uses a small buffer (ELASTIC_BUFFER_SIZE) instead of the default
+ * 6 MB one: when an operation does not fit in the buffer, the pending
+ * operations are spilled to a RenderBufferChain instead of being flushed,
+ * up to MAX_CHAIN_SIZE bytes.  The chain segments are released once they
+ * have not been needed for CHAIN_IDLE_TIME milliseconds.
  */
 public abstract class RenderQueue {
 
+    /** Whether the dedicated queue lock is used instead of the AWT lock. */
+    private static final boolean useQueueLock =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.queuelock")));
+
+    /** The call sites for which a lock ordering inversion was reported. */
+    private static final HashSet<String> reportedInversions =
+        new HashSet<String>();
+
+    /** Whether the rendering threads may enqueue on their own segments. */
+    private static final boolean useSegments =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.queuesegments")));
+
+    /**
+     * The maximum number of published segments waiting to be merged; past
+     * this limit, the publishing thread merges the segments itself.
+     */
+    private static final int MAX_PENDING_SEGMENTS = 64;
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    /** The window of the opcode profiler (0 if it is disabled). */
+    private static final int profileWindow =
+        RenderQueueProfiler.parseWindow(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.queueprofile")));
+
+    /** The path of the queue trace file (null if tracing is disabled). */
+    private static final String tracePath =
+        AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.queuetrace"));
+
+    /** Whether the queue statistics are gathered. */
+    private static final boolean useStats =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.queuestats")));
+
     /** The size of the underlying buffer, in bytes. */
     private static final int BUFFER_SIZE = 6*1024*1024; // 6400000 in https://github.com/JetBrains/jdk8u_jdk/commit/68ca9f00ded004c970b94bd047a04b9f09237047
 
+    /** Whether the queue uses a small buffer and a RenderBufferChain. */
+    private static final boolean useElasticBuffer =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.elasticqueue")));
+
+    /**
+     * The size of the underlying buffer (and of the chain segments) of an
+     * elastic queue, in bytes.
+     */
+    private static final int ELASTIC_BUFFER_SIZE = 256*1024;
+
+    /** The maximum size of the chain of an elastic queue, in bytes. */
+    private static final int MAX_CHAIN_SIZE = 32*1024*1024;
+
+    /**
+     * The delay (in milliseconds) without spill after which the pooled
+     * chain segments are released.
+     */
+    private static final long CHAIN_IDLE_TIME = 2000;
+
     /** The underlying buffer for this queue. */
     protected final RenderBuffer buf;
 
+    /**
+     * The operations spilled from the buffer, which precede the content
+     * of the buffer (null unless useElasticBuffer is true).
+     */
+    protected final RenderBufferChain chain;
+
     /**
      * A Set containing hard references to Objects that must stay alive until
      * the queue has been completely flushed.
      */
     protected final ArrayList<Object> refList;
 
+    /** The dedicated queue lock (only used if useQueueLock is true). */
+    private final ReentrantLock queueLock;
+
+    /**
+     * The thread waiting for the dedicated queue lock in lock() while
+     * holding the AWT lock (there is at most one such thread, the owner of
+     * the AWT lock), or null.
+     */
+    private volatile Thread flushLockLender = null;
+
+    /**
+     * The segment of each rendering thread, the published segments waiting
+     * to be merged (in publication order), the segments of the rendering
+     * threads holding unpublished operations and the recycled segments
+     * (only used if useSegments is true).
+     */
+    private final ThreadLocal<RenderSegment> segments;
+    private final ConcurrentLinkedQueue<RenderSegment> publishedSegments;
+    private final ConcurrentLinkedQueue<RenderSegment> idleSegments;
+    private final ConcurrentLinkedQueue<RenderSegment> freeSegments;
+    private final AtomicInteger pendingSegmentBytes;
+    private final AtomicInteger pendingSegmentCount;
+
+    /** Set while the published segments are merged (queue lock held). */
+    private boolean merging = false;
+
+    /** The queue statistics (null unless useStats is true). */
+    protected final RenderQueueStats stats;
+
+    /** The opcode profiler (null unless profileWindow is positive). */
+    protected final RenderQueueProfiler profiler;
+
+    /** The queue trace (null unless tracePath is set). */
+    protected final RenderQueueTrace trace;
+
+    /**
+     * The number of operations enqueued from Java since the buffer was
+     * last cleared (see ensureCapacity()).
+     */
+    private int opCount = 0;
+
+    /**
+     * The depth of the queue lock acquired through lock() and tryLock(),
+     * and the time (in nanoseconds) at which it was acquired (only
+     * maintained if the statistics are gathered).
+     */
+    private int lockDepth = 0;
+    private long lockedSince;
+
     protected RenderQueue() {
         refList = new ArrayList<Object>(1024); // large enough (LBO) ?
-        buf = RenderBuffer.allocate(BUFFER_SIZE);
+        if (useElasticBuffer) {
+            buf = RenderBuffer.allocate(ELASTIC_BUFFER_SIZE);
+            chain = new RenderBufferChain(ELASTIC_BUFFER_SIZE,
+                                          MAX_CHAIN_SIZE, CHAIN_IDLE_TIME);
+        } else {
+            buf = RenderBuffer.allocate(BUFFER_SIZE);
+            chain = null;
+        }
+        queueLock = useQueueLock ? new ReentrantLock() : null;
+        if (useSegments) {
+            segments = ThreadLocal.withInitial(() -> new RenderSegment(this));
+            publishedSegments = new ConcurrentLinkedQueue<RenderSegment>();
+            idleSegments = new ConcurrentLinkedQueue<RenderSegment>();
+            freeSegments = new ConcurrentLinkedQueue<RenderSegment>();
+            pendingSegmentBytes = new AtomicInteger();
+            pendingSegmentCount = new AtomicInteger();
+        } else {
+            segments = null;
+            publishedSegments = null;
+            idleSegments = null;
+            freeSegments = null;
+            pendingSegmentBytes = null;
+            pendingSegmentCount = null;
+        }
+        if (useStats) {
+            stats = new RenderQueueStats(getClass().getSimpleName());
+            runOnExit(() -> stats.dump(System.err));
+            if (chain != null) {
+                String name = getClass().getSimpleName();
+                runOnExit(() -> chain.dump(System.err, name));
+            }
+        } else {
+            stats = null;
+        }
+        if (profileWindow > 0) {
+            profiler = new RenderQueueProfiler(getClass().getSimpleName(),
+                                               profileWindow);
+            runOnExit(() -> profiler.dump(System.err));
+        } else {
+            profiler = null;
+        }
+        trace = (tracePath != null && !tracePath.isEmpty()) ?
+            RenderQueueTrace.open(tracePath) : null;
+        if (trace != null) {
+            runOnExit(trace::close);
+        }
+    }
+
+    /**
+     * Registers a shutdown hook running the given diagnostic task.
+     */
+    protected static void runOnExit(Runnable task) {
+        AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+            Thread t = new Thread(ThreadGroupUtils.getRootThreadGroup(),
+                                  task, "RenderQueue Dumper", 0, false);
+            Runtime.getRuntime().addShutdownHook(t);
+            return null;
+        });
     }
     
     protected final void clear() {
@@ -93,12 +313,108 @@ public abstract class RenderQueue {
         buf.clear();
         // clear the set of references, since we no longer need them
         refList.clear();
+        opCount = 0;
+    }
+
+    /**
+     * Returns the number of operations enqueued from Java since the buffer
+     * was last cleared.
+     */
+    protected final int getOpCount() {
+        return opCount;
+    }
+
+    /**
+     * Returns the number of pending bytes, i.e. the bytes spilled to the
+     * chain (if any) followed by the bytes of the buffer.  This value is
+     * only a hint unless the queue lock is held.
+     */
+    protected final int getPendingBytes() {
+        int pending = buf.position();
+        if (chain != null) {
+            pending += chain.getBytes();
+        }
+        return pending;
     }
 
     /**
-     * Locks the queue for read/write access.
+     * Returns the maximum number of pending bytes.
+     */
+    protected final int getMaxPendingBytes() {
+        int max = buf.capacity();
+        if (chain != null) {
+            max += chain.getMaxBytes();
+        }
+        return max;
+    }
+
+    /**
+     * Returns the statistics gathered by this queue, or null if the
+     * sun.java2d.queuestats system property is not set to true.
+     */
+    public final RenderQueueStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the opcode profiler of this queue, or null if the
+     * sun.java2d.queueprofile system property is not set.
+     */
+    public final RenderQueueProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Returns the trace recording the batches processed by this queue, or
+     * null if the sun.java2d.queuetrace system property is not set.
+     */
+    public final RenderQueueTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Locks the queue for read/write access.  Unless the queue lock was
+     * already held by the current thread, the operations of the rendering
+     * threads' segments (if any) are merged into the buffer, and
+     * queueLocked() is invoked, before this method returns.
      */
     public final void lock() {
+        if (stats != null) {
+            long start = System.nanoTime();
+            lockQueue();
+            long now = System.nanoTime();
+            stats.lockWait.record(now - start);
+            if (lockDepth == 0) {
+                lockedSince = now;
+            }
+        } else {
+            lockQueue();
+        }
+        if (lockDepth++ == 0) {
+            try {
+                if (publishedSegments != null && !merging &&
+                    (!publishedSegments.isEmpty() || !idleSegments.isEmpty()))
+                {
+                    mergeSegments();
+                }
+                queueLocked();
+            } catch (Throwable t) {
+                unlock();
+                throw t;
+            }
+        }
+    }
+
+    /**
+     * Invoked by the outermost lock(), after the segments have been merged,
+     * and before the caller validates any context or enqueues any operation.
+     * Subclasses may enqueue operations of their own here.  The default
+     * implementation does nothing.
+     */
+    protected void queueLocked() {
+    }
+
+    private void lockQueue() {
         /*
          * Implementation note: In theory we should have two separate locks:
          * one lock to synchronize access to the RenderQueue, and then a
@@ -115,8 +431,33 @@ public abstract class RenderQueue {
          * require potentially risky changes to AWT to ensure that it never
          * acquires the AWT lock before calling into 2D code that wants to
          * acquire the RQ lock.)
+         *
+         * The two-lock system can be enabled with the sun.java2d.queuelock
+         * system property; see the class comment for details.
          */
-        SunToolkit.awtLock();
+        if (queueLock == null) {
+            SunToolkit.awtLock();
+            return;
+        }
+        if (queueLock.isHeldByCurrentThread()) {
+            queueLock.lock();
+            return;
+        }
+        if (SunToolkit.isAWTLockHeldByCurrentThread()) {
+            // this is the inversion described above (see 6253009): the
+            // AWT lock held by our caller is lent to the flush the owner
+            // of the queue lock may wait for, as we cannot use it until
+            // we get the queue lock anyway
+            reportLockInversion();
+            flushLockLender = Thread.currentThread();
+            try {
+                queueLock.lock();
+            } finally {
+                flushLockLender = null;
+            }
+            return;
+        }
+        queueLock.lock();
     }
 
     /**
@@ -125,14 +466,269 @@ public abstract class RenderQueue {
      * {@code unlock}; otherwise this method returns false.
      */
     public final boolean tryLock() {
-        return SunToolkit.awtTryLock();
+        boolean locked = (queueLock == null) ? SunToolkit.awtTryLock()
+                                             : queueLock.tryLock();
+        if (locked && lockDepth++ == 0 && stats != null) {
+            lockedSince = System.nanoTime();
+        }
+        return locked;
     }
 
     /**
      * Unlocks the queue.
      */
     public final void unlock() {
-        SunToolkit.awtUnlock();
+        if (--lockDepth == 0 && stats != null) {
+            stats.lockHold.record(System.nanoTime() - lockedSince);
+        }
+        if (queueLock == null) {
+            SunToolkit.awtUnlock();
+        } else {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Attempts to acquire the AWT lock before calling into the native
+     * windowing system to flush the queue.  If successful, this method
+     * returns true, indicating that the caller is responsible for calling
+     * {@code unlockForFlush}; otherwise this method returns false.  This
+     * always succeeds unless the dedicated queue lock is used, since the
+     * queue lock is the AWT lock otherwise.  The owner of the queue lock
+     * must never block on the AWT lock (see the class comment).
+     */
+    protected final boolean tryLockForFlush() {
+        return (queueLock == null) || SunToolkit.awtTryLock();
+    }
+
+    /**
+     * Returns true if the AWT lock is held by a thread waiting for the
+     * queue lock in lock().  While the owner of the queue lock waits for a
+     * flush, that thread cannot resume before the flush completes, so the
+     * flush may be processed without acquiring the AWT lock, as if it were
+     * processed on behalf of that thread.
+     */
+    protected final boolean isFlushLockLent() {
+        return flushLockLender != null;
+    }
+
+    /**
+     * Releases the lock acquired by {@code tryLockForFlush}.
+     */
+    protected final void unlockForFlush() {
+        if (queueLock != null) {
+            SunToolkit.awtUnlock();
+        }
+    }
+
+    /**
+     * Returns true if the dedicated queue lock is used, in which case the
+     * operations no longer referenced by the queue may be processed under
+     * the AWT lock alone, while other threads enqueue operations.
+     */
+    protected final boolean isQueueLockDedicated() {
+        return queueLock != null;
+    }
+
+    /**
+     * Returns true if the queue lock is held by the current thread.
+     */
+    private boolean isLockHeldByCurrentThread() {
+        if (queueLock == null) {
+            return SunToolkit.isAWTLockHeldByCurrentThread();
+        }
+        return queueLock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Returns the RenderSegment of the current thread, or null if segments
+     * are disabled or if the current thread holds the queue lock (in which
+     * case the operations must be enqueued directly on the queue, in order
+     * to be processed in the order they were issued).
+     */
+    public final RenderSegment getSegment() {
+        if (segments == null || isLockHeldByCurrentThread()) {
+            return null;
+        }
+        return segments.get();
+    }
+
+    /**
+     * Publishes the content of the given segment, which is copied so that
+     * the segment can be reused immediately by its thread.  If
+     * {@code last} is true, the validator of the segment is disposed once
+     * the copy has been merged.
+     */
+    final void publishSegment(RenderSegment seg, boolean last) {
+        RenderSegment copy = freeSegments.poll();
+        if (copy == null) {
+            copy = new RenderSegment(this);
+        }
+        int limit = seg.buf.position();
+        if (limit > 0) {
+            unsafe.copyMemory(seg.buf.getAddress(),
+                              copy.buf.getAddress(), limit);
+            copy.buf.position(limit);
+        }
+        copy.refList.addAll(seg.refList);
+        copy.validator = seg.validator;
+        copy.disposeValidator = last;
+
+        pendingSegmentBytes.addAndGet(limit);
+        publishedSegments.offer(copy);
+        if (pendingSegmentCount.incrementAndGet() > MAX_PENDING_SEGMENTS) {
+            // the queue lock has not been acquired for a while, so merge
+            // the published segments now (see lock())
+            lock();
+            unlock();
+        }
+    }
+
+    /**
+     * Registers the given (closed) segment as holding operations that have
+     * not been published, so that they are merged by the next owner of the
+     * queue lock.
+     */
+    final void registerSegment(RenderSegment seg) {
+        idleSegments.offer(seg);
+    }
+
+    /**
+     * Returns the number of bytes held by the segments that have not been
+     * merged yet.  This value is only a hint unless the queue lock is held.
+     */
+    protected final int getPendingSegmentBytes() {
+        if (pendingSegmentBytes == null) {
+            return 0;
+        }
+        int bytes = pendingSegmentBytes.get();
+        for (RenderSegment seg : idleSegments) {
+            bytes += seg.buf.position();
+        }
+        return bytes;
+    }
+
+    /**
+     * Merges the published segments into the buffer, in the order they were
+     * published, followed by the operations left on the closed segments.
+     * For each segment, the context validation recorded by its validator is
+     * enqueued first, followed by the operations of the segment.  The queue
+     * lock must be acquired before calling this method.
+     */
+    protected final void mergeSegments() {
+        if (publishedSegments == null || merging) {
+            return;
+        }
+        merging = true;
+        try {
+            mergePublishedSegments();
+            ArrayList<RenderSegment> open = null;
+            RenderSegment seg;
+            while ((seg = idleSegments.poll()) != null) {
+                if (!seg.tryAcquire()) {
+                    // the segment is in use, its operations will be merged
+                    // by the next owner of the queue lock
+                    if (open == null) {
+                        open = new ArrayList<RenderSegment>();
+                    }
+                    open.add(seg);
+                    continue;
+                }
+                try {
+                    seg.registered = false;
+                    // the copies published by the owner of the segment
+                    // must be merged first
+                    mergePublishedSegments();
+                    if (seg.buf.position() > 0 || !seg.refList.isEmpty()) {
+                        mergeSegment(seg);
+                    }
+                } finally {
+                    seg.buf.clear();
+                    seg.refList.clear();
+                    seg.release();
+                }
+            }
+            if (open != null) {
+                idleSegments.addAll(open);
+            }
+        } finally {
+            merging = false;
+        }
+    }
+
+    private void mergePublishedSegments() {
+        RenderSegment seg;
+        while ((seg = publishedSegments.poll()) != null) {
+            pendingSegmentCount.decrementAndGet();
+            pendingSegmentBytes.addAndGet(-seg.buf.position());
+            try {
+                if (seg.buf.position() > 0 || !seg.refList.isEmpty()) {
+                    mergeSegment(seg);
+                }
+            } finally {
+                if (seg.disposeValidator) {
+                    seg.validator.dispose();
+                }
+                seg.buf.clear();
+                seg.refList.clear();
+                seg.validator = null;
+                seg.disposeValidator = false;
+                freeSegments.offer(seg);
+            }
+        }
+    }
+
+    private void mergeSegment(RenderSegment seg) {
+        if (seg.validator != null) {
+            try {
+                seg.validator.validate();
+            } catch (InvalidPipeException e) {
+                // the destination is no longer valid, drop the operations
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("exception in segment validation:");
+                e.printStackTrace();
+                return;
+            }
+        }
+        int limit = seg.buf.position();
+        if (limit > 0) {
+            // segments are merged at an 8-byte aligned position, so that
+            // the alignment of their 8-byte parameters is preserved
+            ensureCapacity(limit + 4);
+            ensureAlignment(0);
+            int position = buf.position();
+            unsafe.copyMemory(seg.buf.getAddress(),
+                              buf.getAddress() + position, limit);
+            buf.position(position + limit);
+        }
+        refList.addAll(seg.refList);
+    }
+
+    /**
+     * Reports (once per call site) that the current thread is acquiring the
+     * queue lock while holding the AWT lock.
+     */
+    private static void reportLockInversion() {
+        Throwable t = new Throwable(
+            "RenderQueue lock acquired while holding the AWT lock " +
+            "(lock ordering inversion, see 6253009) on thread " +
+            Thread.currentThread().getName());
+        StackTraceElement[] stack = t.getStackTrace();
+        // skip the RenderQueue frames to identify the call site
+        String site = "unknown";
+        for (StackTraceElement e : stack) {
+            if (!e.getClassName().equals(RenderQueue.class.getName())) {
+                site = e.toString();
+                break;
+            }
+        }
+        synchronized (reportedInversions) {
+            if (!reportedInversions.add(site)) {
+                return;
+            }
+        }
+        t.printStackTrace();
     }
 
     /**
@@ -160,15 +756,28 @@ public abstract class RenderQueue {
     /**
      * Ensures that there will be enough room on the underlying buffer
      * for the following operation.  If the operation will not fit given
-     * the remaining space, the buffer will be flushed immediately, leaving
-     * an empty buffer for the impending operation.
+     * the remaining space, the buffer will be flushed or, for an elastic
+     * queue, spilled to the chain, leaving an empty buffer for the
+     * impending operation.
      *
      * @param opsize size (in bytes) of the following operation
      */
     public final void ensureCapacity(int opsize) {
         if (buf.remaining() < opsize) {
-            flushNow();
+            if (chain != null && opsize <= buf.capacity() &&
+                chain.spill(buf))
+            {
+                // the buffer has grown by one segment, no need to flush
+                opCount++;
+                return;
+            }
+            if (stats != null) {
+                stats.capacityFlushes.increment();
+            }
+            // the caller only needs room on the buffer
+            flushNow(false);
         }
+        opCount++;
     }
 
     /**
@@ -213,9 +822,20 @@ public abstract class RenderQueue {
     }
 
     /**
-     * Schedule to process each operation currently pending on the buffer.
-     * This method will block until the entire buffer has been flushed.  The
-     * queue lock must be acquired before calling this method.
+     * Schedules the processing of each operation currently pending on the
+     * buffer.  If {@code sync} is true, this method will block until the
+     * entire buffer has been flushed.  Otherwise the caller does not depend
+     * on the results of the pending operations, and usually only needs room
+     * on the buffer (e.g. the capacity flush of ensureCapacity()), in the
+     * middle of enqueuing an operation whose context has already been
+     * validated: the implementation may return as soon as the pending
+     * operations have been handed off to the flushing thread, leaving an
+     * empty buffer, or process them synchronously.  In either case, the caller may be in the
+     * middle of an operation (e.g. a glyph list flushed once its context
+     * has been validated), so the implementation must not enqueue
+     * operations of its own along with the pending ones (see queueLocked()
+     * instead).  The queue lock must be acquired before calling this method.
+     *
      * @param sync true, process the operations immediately
      */
     public abstract void flushNow(boolean sync);
@@ -231,11 +851,18 @@ public abstract class RenderQueue {
 
     /**
      * Updates the current position of the underlying buffer, and then
-     * flushes the queue immediately.  This method is useful when native code
-     * has added data to the queue and needs to flush immediately.
+     * flushes the queue.  This method is useful when native code has added
+     * data to the queue and needs to make room for more data (for an
+     * elastic queue, the flush is replaced by a spill to the chain).
      */
     public void flushNow(int position) {
         buf.position(position);
-        flushNow();
+        if (chain != null && chain.spill(buf)) {
+            return;
+        }
+        if (stats != null) {
+            stats.capacityFlushes.increment();
+        }
+        flushNow(false);
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+import java.io.PrintStream;
+import jdk.internal.misc.Unsafe;
+import static sun.java2d.pipe.BufferedOpCodes.*;
+
+/**
+ * Peephole optimizer rewriting a batch of operations (in place) before it
+ * is processed by the native flushing code:
+ *   - runs of adjacent FILL_RECT operations (which share the same state,
+ *     since no operation separates them) are merged into a single
+ *     FILL_SPANS operation; the empty rectangles, which the native
+ *     FILL_RECT skips, are dropped from the run,
+ *   - state operations (clip, composite, transform, paint) immediately
+ *     followed by another operation setting the same state are dropped,
+ *     e.g. a SET_RECT_CLIP followed by a RESET_CLIP.
+ * Shape clips (BEGIN_SHAPE_CLIP ... END_SHAPE_CLIP) are left untouched.
+ *
+ * The batch can only shrink, so it is compacted in place.  The 8-byte
+ * parameters of the operations following a rewritten operation must stay
+ * aligned, so a NOOP token is inserted whenever the batch has shrunk by
+ * an odd number of 4-byte words.  If an unknown opcode is found, the
+ * remaining bytes are left unchanged.
+ *
+ * This class is not thread-safe; it must only be used by the thread
+ * processing the batches.
+ */
+public final class RenderQueueOptimizer {
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    /** The kinds of state operations. */
+    private static final int STATE_NONE      = -1;
+    private static final int STATE_CLIP      = 0;
+    private static final int STATE_COMPOSITE = 1;
+    private static final int STATE_TRANSFORM = 2;
+    private static final int STATE_PAINT     = 3;
+
+    // statistics
+    private long batches, mergedRects, fillSpans, droppedOps, savedBytes;
+
+    public RenderQueueOptimizer() {
+    }
+
+    private static int getStateKind(int opcode) {
+        switch (opcode) {
+        case SET_RECT_CLIP:
+        case RESET_CLIP:
+            return STATE_CLIP;
+        case SET_ALPHA_COMPOSITE:
+        case SET_XOR_COMPOSITE:
+        case RESET_COMPOSITE:
+            return STATE_COMPOSITE;
+        case SET_TRANSFORM:
+        case RESET_TRANSFORM:
+            return STATE_TRANSFORM;
+        case RESET_PAINT:
+        case SET_COLOR:
+        case SET_GRADIENT_PAINT:
+        case SET_LINEAR_GRADIENT_PAINT:
+        case SET_RADIAL_GRADIENT_PAINT:
+        case SET_TEXTURE_PAINT:
+            return STATE_PAINT;
+        default:
+            return STATE_NONE;
+        }
+    }
+
+    /**
+     * Returns the size of the operation stored at the given position, or
+     * -1 if it is unknown or truncated.
+     */
+    private static int getOpSize(long addr, int pos, int limit) {
+        if (limit - pos < 4) {
+            return -1;
+        }
+        long p = addr + pos;
+        int opsize = RenderQueueProfiler.getOpSize(unsafe.getInt(p), p);
+        return (opsize > 0 && pos + opsize <= limit) ? opsize : -1;
+    }
+
+    /**
+     * Rewrites the batch of operations stored at the given address, and
+     * returns its new limit.
+     */
+    public int optimize(long addr, int limit) {
+        batches++;
+        int r = 0; // read position
+        int w = 0; // write position, (r - w) is a multiple of 8
+        while (r < limit) {
+            int opsize = getOpSize(addr, r, limit);
+            if (opsize < 0) {
+                break;
+            }
+            int opcode = unsafe.getInt(addr + r);
+
+            if (opcode == FILL_RECT &&
+                getOpSize(addr, r + opsize, limit) > 0 &&
+                unsafe.getInt(addr + r + opsize) == FILL_RECT)
+            {
+                int end = r;
+                while (end + 20 <= limit &&
+                       unsafe.getInt(addr + end) == FILL_RECT)
+                {
+                    end += 20;
+                }
+                int n = mergeFillRects(addr, r, end, w);
+                mergedRects += (end - r) / 20;
+                if (n > 0) {
+                    fillSpans++;
+                    w += 8 + 16 * n;
+                }
+                r = end;
+                w = align(addr, r, w);
+                continue;
+            }
+
+            int kind = getStateKind(opcode);
+            if (kind != STATE_NONE && isOverridden(addr, r + opsize,
+                                                   limit, kind))
+            {
+                droppedOps++;
+                r += opsize;
+                w = align(addr, r, w);
+                continue;
+            }
+
+            if (w != r) {
+                unsafe.copyMemory(addr + r, addr + w, opsize);
+            }
+            r += opsize;
+            w += opsize;
+        }
+        if (r < limit) {
+            // unknown opcode, keep the remaining bytes as is
+            if (w != r) {
+                unsafe.copyMemory(addr + r, addr + w, limit - r);
+            }
+            w += limit - r;
+        }
+        savedBytes += limit - w;
+        return w;
+    }
+
+    /**
+     * Inserts a NOOP token at the write position if needed to keep the
+     * relative alignment of the following operations.
+     */
+    private static int align(long addr, int r, int w) {
+        if (((r - w) & 7) != 0) {
+            unsafe.putInt(addr + w, NOOP);
+            w += 4;
+        }
+        return w;
+    }
+
+    /**
+     * Returns true if the next operation (ignoring NOOP tokens) sets the
+     * same kind of state.
+     */
+    private static boolean isOverridden(long addr, int pos, int limit,
+                                        int kind)
+    {
+        while (pos < limit) {
+            int opsize = getOpSize(addr, pos, limit);
+            if (opsize < 0) {
+                return false;
+            }
+            int opcode = unsafe.getInt(addr + pos);
+            if (opcode != NOOP) {
+                return getStateKind(opcode) == kind;
+            }
+            pos += opsize;
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the run of FILL_RECT operations from position r to end as
+     * a FILL_SPANS operation at position w (with w <= r), and returns the
+     * number of spans written.  The empty rectangles are dropped, and
+     * nothing is written if the whole run is empty.  The length of the run
+     * is determined first, since a span may overlap the opcode of the next
+     * rectangle; each span is written after the corresponding rectangle
+     * has been read, and never overlaps the parameters of the following
+     * rectangles.
+     */
+    private static int mergeFillRects(long addr, int r, int end, int w) {
+        int count = 0;
+        for (int i = 0; i < (end - r) / 20; i++) {
+            long p = addr + r + 20 * i;
+            int width = unsafe.getInt(p + 12);
+            int height = unsafe.getInt(p + 16);
+            if (width > 0 && height > 0) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long spans = addr + w + 8;
+        int n = 0;
+        for (int i = 0; i < (end - r) / 20; i++) {
+            long p = addr + r + 20 * i;
+            int x = unsafe.getInt(p + 4);
+            int y = unsafe.getInt(p + 8);
+            int width = unsafe.getInt(p + 12);
+            int height = unsafe.getInt(p + 16);
+            if (width <= 0 || height <= 0) {
+                // FILL_RECT draws nothing, whereas a span would be drawn
+                continue;
+            }
+            if (n == 0) {
+                // the first rectangle has been read, write the header
+                unsafe.putInt(addr + w, FILL_SPANS);
+                unsafe.putInt(addr + w + 4, count);
+            }
+            long span = spans + 16 * n++;
+            unsafe.putInt(span, x);
+            unsafe.putInt(span + 4, y);
+            unsafe.putInt(span + 8, clampedSum(x, width));
+            unsafe.putInt(span + 12, clampedSum(y, height));
+        }
+        return n;
+    }
+
+    /**
+     * Returns the end coordinate of a span, clamped to the int range.
+     */
+    private static int clampedSum(int origin, int size) {
+        return (int)Math.min((long)origin + size, Integer.MAX_VALUE);
+    }
+
+    public void dump(PrintStream ps, String name) {
+        ps.println("RenderQueue peephole optimizer for " + name + ":");
+        ps.println("  batches=" + batches +
+                   " FILL_RECT merged=" + mergedRects +
+                   " into FILL_SPANS=" + fillSpans +
+                   " state ops dropped=" + droppedOps +
+                   " bytes saved=" + savedBytes);
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import jdk.internal.misc.Unsafe;
+import static sun.java2d.pipe.BufferedOpCodes.*;
+
+/**
+ * Diagnostic profiler decoding the BufferedOpCodes stream of each batch
+ * just before it is processed by the native flushing code.  It is enabled
+ * by the sun.java2d.queueprofile system property, whose value is either
+ * true or the size of the sliding window (in batches) over which the
+ * results are aggregated (DEFAULT_WINDOW by default).  The results are
+ * dumped on System.err when the VM exits, and can be dumped on demand
+ * using RenderQueue.getProfiler().dump().
+ *
+ * For each opcode, the profiler reports the number of operations, their
+ * total size and the number of redundant state changes, i.e. state
+ * operations (clip, composite, transform, paint, surfaces) identical to
+ * the previous operation of the same kind since the last context change.
+ * The NOOP count is the number of alignment pads inserted by
+ * ensureAlignment().
+ *
+ * The size of each operation must be known to decode the stream; if an
+ * unknown opcode is found, the remaining bytes of the batch are reported
+ * as undecoded.
+ */
+public final class RenderQueueProfiler {
+
+    /** The default size of the sliding window, in batches. */
+    public static final int DEFAULT_WINDOW = 64;
+
+    private static final int MAX_OPCODE = 256;
+
+    /** The kinds of state operations, used to detect redundant ones. */
+    private static final int STATE_NONE      = -1;
+    private static final int STATE_CLIP      = 0;
+    private static final int STATE_COMPOSITE = 1;
+    private static final int STATE_TRANSFORM = 2;
+    private static final int STATE_PAINT     = 3;
+    private static final int STATE_SURFACES  = 4;
+    private static final int STATE_KINDS     = 5;
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    private static String[] opNames;
+
+    private final String name;
+    private final int window;
+
+    /** The results of the batches of the window (ring buffer). */
+    private final int[][] counts;
+    private final int[][] bytes;
+    private final int[][] redundant;
+    private final int[] undecoded;
+    private int next = 0;
+    private int size = 0;
+    private long totalBatches = 0L;
+
+    /** The offset and size of the last operation of each state kind. */
+    private final long[] lastStateAddr = new long[STATE_KINDS];
+    private final int[] lastStateSize = new int[STATE_KINDS];
+
+    RenderQueueProfiler(String name, int window) {
+        this.name = name;
+        this.window = Math.max(1, window);
+        counts = new int[this.window][MAX_OPCODE];
+        bytes = new int[this.window][MAX_OPCODE];
+        redundant = new int[this.window][MAX_OPCODE];
+        undecoded = new int[this.window];
+    }
+
+    /**
+     * Returns the profiler window size described by the given property
+     * value, or 0 if the profiler is disabled.
+     */
+    static int parseWindow(String value) {
+        if (value == null || value.isEmpty() ||
+            value.equalsIgnoreCase("false"))
+        {
+            return 0;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return DEFAULT_WINDOW;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid queue profile window: " + value);
+            return DEFAULT_WINDOW;
+        }
+    }
+
+    /**
+     * Decodes the batch of operations stored at the given address.  This
+     * method must be called before the batch is processed, by the thread
+     * processing it.
+     */
+    public synchronized void record(long addr, int limit) {
+        int slot = next;
+        int[] c = counts[slot];
+        int[] b = bytes[slot];
+        int[] r = redundant[slot];
+        Arrays.fill(c, 0);
+        Arrays.fill(b, 0);
+        Arrays.fill(r, 0);
+        undecoded[slot] = 0;
+        resetState();
+
+        int pos = 0;
+        while (pos < limit) {
+            long p = addr + pos;
+            int opcode = unsafe.getInt(p);
+            int opsize = (opcode >= 0 && opcode < MAX_OPCODE) ?
+                getOpSize(opcode, p) : -1;
+            if (opsize <= 0 || pos + opsize > limit) {
+                undecoded[slot] = limit - pos;
+                break;
+            }
+            c[opcode]++;
+            b[opcode] += opsize;
+            if (isRedundant(opcode, p, opsize)) {
+                r[opcode]++;
+            }
+            pos += opsize;
+        }
+
+        next = (slot + 1) % window;
+        if (size < window) {
+            size++;
+        }
+        totalBatches++;
+    }
+
+    private void resetState() {
+        for (int i = 0; i < STATE_KINDS; i++) {
+            lastStateAddr[i] = 0L;
+            lastStateSize[i] = 0;
+        }
+    }
+
+    /**
+     * Returns true if the given operation is a state operation identical
+     * to the previous one of the same kind, and remembers it otherwise.
+     */
+    private boolean isRedundant(int opcode, long p, int opsize) {
+        switch (opcode) {
+        case SET_SCRATCH_SURFACE:
+        case INVALIDATE_CONTEXT:
+            // the context has changed, the state must be set up again
+            resetState();
+            return false;
+        case BEGIN_SHAPE_CLIP:
+            // the shape clip is made of the following spans, which are
+            // not compared
+            lastStateAddr[STATE_CLIP] = 0L;
+            return false;
+        default:
+            break;
+        }
+        int kind = getStateKind(opcode);
+        if (kind == STATE_NONE) {
+            return false;
+        }
+        long last = lastStateAddr[kind];
+        if (last != 0L && lastStateSize[kind] == opsize &&
+            equals(last, p, opsize))
+        {
+            return true;
+        }
+        if (kind == STATE_SURFACES) {
+            // the state of the previous surfaces no longer applies
+            resetState();
+        }
+        lastStateAddr[kind] = p;
+        lastStateSize[kind] = opsize;
+        return false;
+    }
+
+    private static boolean equals(long p1, long p2, int size) {
+        for (int i = 0; i < size; i += 4) {
+            if (unsafe.getInt(p1 + i) != unsafe.getInt(p2 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getStateKind(int opcode) {
+        switch (opcode) {
+        case SET_RECT_CLIP:
+        case BEGIN_SHAPE_CLIP:
+        case RESET_CLIP:
+            return STATE_CLIP;
+        case SET_ALPHA_COMPOSITE:
+        case SET_XOR_COMPOSITE:
+        case RESET_COMPOSITE:
+            return STATE_COMPOSITE;
+        case SET_TRANSFORM:
+        case RESET_TRANSFORM:
+            return STATE_TRANSFORM;
+        case RESET_PAINT:
+        case SET_COLOR:
+        case SET_GRADIENT_PAINT:
+        case SET_LINEAR_GRADIENT_PAINT:
+        case SET_RADIAL_GRADIENT_PAINT:
+        case SET_TEXTURE_PAINT:
+            return STATE_PAINT;
+        case SET_SURFACES:
+            return STATE_SURFACES;
+        default:
+            return STATE_NONE;
+        }
+    }
+
+    private static int pad4(int n) {
+        return (n + 3) & ~3;
+    }
+
+    /**
+     * Returns the size (in bytes, including the opcode) of the operation
+     * stored at the given address, or -1 if the opcode is unknown.
+     */
+    static int getOpSize(int opcode, long p) {
+        switch (opcode) {
+        // draw/fill operations
+        case DRAW_LINE:
+        case DRAW_RECT:
+        case FILL_RECT:
+            return 20;
+        case DRAW_POLY:
+            return 20 + 8 * unsafe.getInt(p + 4);
+        case DRAW_PIXEL:
+            return 12;
+        case DRAW_SCANLINES:
+            return 8 + 12 * unsafe.getInt(p + 4);
+        case DRAW_PARALLELOGRAM:
+        case DRAW_AAPARALLELOGRAM:
+            return 36;
+        case FILL_SPANS:
+            return 8 + 16 * unsafe.getInt(p + 4);
+        case FILL_PARALLELOGRAM:
+        case FILL_AAPARALLELOGRAM:
+            return 28;
+
+        // copy-related operations
+        case COPY_AREA:
+            return 28;
+        case BLIT:
+            return 72;
+        case MASK_FILL:
+            return 32 + pad4(unsafe.getInt(p + 28));
+        case MASK_BLIT:
+            return 20 + 4 * unsafe.getInt(p + 12) * unsafe.getInt(p + 16);
+        case SURFACE_TO_SW_BLIT:
+            return 48;
+
+        // text-related operations
+        case DRAW_GLYPH_LIST: {
+            int numGlyphs = unsafe.getInt(p + 4);
+            boolean usePositions = (unsafe.getInt(p + 8) & 1) != 0;
+            return 20 + numGlyphs * (usePositions ? 16 : 8);
+        }
+
+        // state-related operations
+        case SET_RECT_CLIP:
+            return 20;
+        case BEGIN_SHAPE_CLIP:
+        case END_SHAPE_CLIP:
+        case RESET_CLIP:
+            return 4;
+        case SET_SHAPE_CLIP_SPANS:
+            return 8 + 16 * unsafe.getInt(p + 4);
+        case SET_ALPHA_COMPOSITE:
+            return 16;
+        case SET_XOR_COMPOSITE:
+            return 8;
+        case RESET_COMPOSITE:
+            return 4;
+        case SET_TRANSFORM:
+            return 52;
+        case RESET_TRANSFORM:
+            return 4;
+
+        // context-related operations
+        case SET_SURFACES:
+            return 20;
+        case SET_SCRATCH_SURFACE:
+        case FLUSH_SURFACE:
+        case DISPOSE_SURFACE:
+        case DISPOSE_CONFIG:
+            return 12;
+        case INVALIDATE_CONTEXT:
+        case SYNC:
+        case SAVE_STATE:
+        case RESTORE_STATE:
+            return 4;
+        case SWAP_BUFFERS:
+            return 12;
+        case NOOP:
+            return 4;
+
+        // paint-related operations
+        case RESET_PAINT:
+            return 4;
+        case SET_COLOR:
+            return 8;
+        case SET_GRADIENT_PAINT:
+            return 44;
+        case SET_LINEAR_GRADIENT_PAINT:
+            return 32 + 8 * unsafe.getInt(p + 16);
+        case SET_RADIAL_GRADIENT_PAINT:
+            return 48 + 8 * unsafe.getInt(p + 12);
+        case SET_TEXTURE_PAINT:
+            return 68;
+
+        // BufferedImageOp-related operations
+        case ENABLE_CONVOLVE_OP:
+            return 24 + 4 * unsafe.getInt(p + 16) * unsafe.getInt(p + 20);
+        case ENABLE_RESCALE_OP:
+            return 48;
+        case ENABLE_LOOKUP_OP: {
+            boolean shortData = unsafe.getInt(p + 16) != 0;
+            int numBands = unsafe.getInt(p + 20);
+            int bandLength = unsafe.getInt(p + 24);
+            return 32 + pad4(numBands * bandLength * (shortData ? 2 : 1));
+        }
+        case DISABLE_CONVOLVE_OP:
+        case DISABLE_RESCALE_OP:
+        case DISABLE_LOOKUP_OP:
+            return 12;
+
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the name of the given opcode, as declared in BufferedOpCodes.
+     */
+    private static synchronized String getOpName(int opcode) {
+        if (opNames == null) {
+            opNames = new String[MAX_OPCODE];
+            for (Field f : BufferedOpCodes.class.getFields()) {
+                if (Modifier.isStatic(f.getModifiers()) &&
+                    f.getType() == int.class)
+                {
+                    try {
+                        int value = f.getInt(null);
+                        if (value >= 0 && value < MAX_OPCODE) {
+                            opNames[value] = f.getName();
+                        }
+                    } catch (IllegalAccessException e) {
+                        // ignored
+                    }
+                }
+            }
+        }
+        String opName = opNames[opcode];
+        return (opName != null) ? opName : ("OPCODE_" + opcode);
+    }
+
+    /**
+     * Dumps the results aggregated over the batches of the window.
+     */
+    public synchronized void dump(PrintStream ps) {
+        long[] c = new long[MAX_OPCODE];
+        long[] b = new long[MAX_OPCODE];
+        long[] r = new long[MAX_OPCODE];
+        long undecodedBytes = 0L;
+        for (int i = 0; i < size; i++) {
+            for (int op = 0; op < MAX_OPCODE; op++) {
+                c[op] += counts[i][op];
+                b[op] += bytes[i][op];
+                r[op] += redundant[i][op];
+            }
+            undecodedBytes += undecoded[i];
+        }
+
+        long ops = 0L, totalBytes = 0L, stateOps = 0L, redundantOps = 0L;
+        for (int op = 0; op < MAX_OPCODE; op++) {
+            ops += c[op];
+            totalBytes += b[op];
+            if (getStateKind(op) != STATE_NONE) {
+                stateOps += c[op];
+            }
+            redundantOps += r[op];
+        }
+
+        ps.println("RenderQueue opcode profile for " + name + " (last " +
+                   size + " of " + totalBatches + " batches):");
+        ps.println("  operations=" + ops + " bytes=" + totalBytes +
+                   " undecoded bytes=" + undecodedBytes);
+        ps.println("  state changes=" + stateOps +
+                   " (redundant=" + redundantOps + ")" +
+                   " surface validations=" + c[SET_SURFACES] +
+                   " scratch surfaces=" + c[SET_SCRATCH_SURFACE] +
+                   " context invalidations=" + c[INVALIDATE_CONTEXT] +
+                   " alignment pads=" + c[NOOP]);
+        for (int op = 0; op < MAX_OPCODE; op++) {
+            if (c[op] != 0L) {
+                ps.println("  " + getOpName(op) + ": count=" + c[op] +
+                           " bytes=" + b[op] +
+                           ((r[op] != 0L) ? " redundant=" + r[op] : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics gathered by a RenderQueue when the sun.java2d.queuestats
+ * system property is set to true (see RenderQueue.getStats()).  The
+ * statistics are dumped on System.err when the VM exits.
+ *
+ * All counters are LongAdders (or arrays of LongAdders), so recording a
+ * value never allocates nor blocks, and the statistics can be read at any
+ * time by another thread (the values read are not an atomic snapshot).
+ *
+ * Flush requests are counted by kind:
+ *   sync      - synchronous flushes (flushNow(), flushAndInvokeNow())
+ *   room      - flushes only making room on the buffer (flushNow(false)),
+ *               including the capacity-triggered ones
+ *   capacity  - flushes triggered because an operation did not fit in the
+ *               buffer (ensureCapacity(), flushNow(int))
+ *   auto      - flushes performed by the flushing thread on its own
+ * Each batch processed by the native flushing code is also recorded
+ * (bytes, operations, hard references and native latency).  Operations
+ * are counted as the number of ensureCapacity() calls made from Java, so
+ * the operations enqueued by native code are not included.
+ */
+public final class RenderQueueStats {
+
+    public final LongAdder syncFlushes = new LongAdder();
+    public final LongAdder roomFlushes = new LongAdder();
+    public final LongAdder capacityFlushes = new LongAdder();
+    public final LongAdder autoFlushes = new LongAdder();
+
+    /** Size of the processed batches, in bytes. */
+    public final Histogram batchBytes = new Histogram();
+    /** Number of operations enqueued from Java per processed batch. */
+    public final Histogram batchOps = new Histogram();
+    /** Number of hard references (refList size) per processed batch. */
+    public final Histogram batchRefs = new Histogram();
+    /** Time spent in the native flushBuffer() call, in nanoseconds. */
+    public final Histogram flushLatency = new Histogram();
+    /** Time spent waiting for the queue lock, in nanoseconds. */
+    public final Histogram lockWait = new Histogram();
+    /** Time during which the queue lock was held, in nanoseconds. */
+    public final Histogram lockHold = new Histogram();
+    /** Duration of the flushAndInvokeNow() tasks, in nanoseconds. */
+    public final Histogram taskDuration = new Histogram();
+
+    private final String name;
+
+    RenderQueueStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a batch processed by the native flushing code.
+     */
+    public void batchFlushed(int bytes, int ops, int refs, long nanos) {
+        batchBytes.record(bytes);
+        batchOps.record(ops);
+        batchRefs.record(refs);
+        flushLatency.record(nanos);
+    }
+
+    public void dump(PrintStream ps) {
+        ps.println("RenderQueue statistics for " + name + ":");
+        ps.println("  flushes: sync=" + syncFlushes.sum() +
+                   " room=" + roomFlushes.sum() +
+                   " capacity=" + capacityFlushes.sum() +
+                   " auto=" + autoFlushes.sum());
+        batchBytes.dump(ps, "batch size (bytes)");
+        batchOps.dump(ps, "batch operations");
+        batchRefs.dump(ps, "batch references");
+        flushLatency.dump(ps, "native flush (ns)");
+        lockWait.dump(ps, "lock wait (ns)");
+        lockHold.dump(ps, "lock hold (ns)");
+        taskDuration.dump(ps, "invoked tasks (ns)");
+    }
+
+    /**
+     * A histogram of non-negative values, using power of two buckets:
+     * bucket 0 holds the zero values, and bucket i (i > 0) holds the values
+     * in [2^(i-1), 2^i).
+     */
+    public static final class Histogram {
+        public static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            if (value < 0L) {
+                value = 0L;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the number of values recorded in the given bucket.
+         */
+        public long getBucketCount(int bucket) {
+            return buckets[bucket].sum();
+        }
+
+        /**
+         * Returns an estimate of the given percentile (0-100), i.e. the
+         * upper bound of the bucket containing it.
+         */
+        public long getPercentile(double percentile) {
+            long total = getCount();
+            if (total == 0L) {
+                return 0L;
+            }
+            long rank = (long)Math.ceil(total * percentile / 100.0);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return (i == 0) ? 0L : Math.min(getMax(), (1L << i) - 1);
+                }
+            }
+            return getMax();
+        }
+
+        void dump(PrintStream ps, String label) {
+            long n = getCount();
+            ps.println("  " + label + ": count=" + n +
+                       " avg=" + ((n != 0L) ? getSum() / n : 0L) +
+                       " p50<=" + getPercentile(50) +
+                       " p99<=" + getPercentile(99) +
+                       " max=" + getMax());
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import jdk.internal.misc.Unsafe;
+import static sun.java2d.pipe.BufferedOpCodes.*;
+
+/**
+ * A trace of the batches processed by a RenderQueue, written to a memory
+ * mapped file when the sun.java2d.queuetrace system property is set to the
+ * path of the trace file.  The trace can be replayed offline (see e.g.
+ * sun.java2d.opengl.OGLTraceReplayer) to reproduce a rendering load
+ * without the original application.
+ *
+ * The trace file starts with a header (MAGIC, VERSION and BYTE_ORDER_MARK,
+ * the latter allowing to detect a trace recorded on a machine with a
+ * different byte order), followed by records made of a tag, the length of
+ * the payload and the payload itself, padded to a multiple of 8 bytes:
+ *   TAG_BATCH    - time (System.nanoTime()) followed by the batch bytes,
+ *                  which start with a NOOP token if the batch itself did
+ *                  not start at an 8-byte aligned address (see
+ *                  recordBatch())
+ *   TAG_SURFACE  - metadata of a surface created by the pipeline: native
+ *                  ops pointer, native config pointer, type, width, height
+ *                  and opacity
+ *   TAG_END      - end of the trace
+ *
+ * The batches reference native resources (surfaces, configs, glyphs...)
+ * by address, so the replayer must relocate them (see Relocation).
+ */
+public final class RenderQueueTrace {
+
+    public static final long MAGIC = 0x4A32445251545243L; // "J2DRQTRC"
+    public static final int VERSION = 1;
+    public static final int BYTE_ORDER_MARK = 0x01020304;
+
+    public static final int TAG_END     = 0;
+    public static final int TAG_BATCH   = 1;
+    public static final int TAG_SURFACE = 2;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SURFACE_PAYLOAD_SIZE = 32;
+
+    /** The size of the regions of the file mapped for writing. */
+    private static final int REGION_SIZE = 16*1024*1024;
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private final byte[] scratch = new byte[64*1024];
+    private boolean closed = false;
+
+    private RenderQueueTrace(String path) throws IOException {
+        this.path = path;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0L);
+        channel = file.getChannel();
+        map(0L);
+        region.putLong(MAGIC);
+        region.putInt(VERSION);
+        region.putInt(BYTE_ORDER_MARK);
+    }
+
+    /**
+     * Creates a trace writing to the given file, or returns null (after
+     * reporting the error) if the file cannot be created.
+     */
+    static RenderQueueTrace open(String path) {
+        try {
+            return new RenderQueueTrace(path);
+        } catch (IOException e) {
+            System.err.println("Cannot create queue trace " + path + ":");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void map(long start) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE,
+                             start, REGION_SIZE);
+        region.order(ByteOrder.nativeOrder());
+        regionStart = start;
+    }
+
+    /**
+     * Ensures that the current region has room for the given number of
+     * bytes, mapping the next region of the file otherwise.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (region.remaining() < size) {
+            map(regionStart + region.position());
+        }
+    }
+
+    private void putHeader(int tag, int length) throws IOException {
+        ensureCapacity(RECORD_HEADER_SIZE);
+        region.putInt(tag);
+        region.putInt(length);
+    }
+
+    private void pad() {
+        // records are aligned on the absolute position in the file
+        long position = regionStart + region.position();
+        int padding = (int)(((position + 7) & ~7L) - position);
+        for (int i = 0; i < padding; i++) {
+            region.put((byte)0);
+        }
+    }
+
+    /**
+     * Records the batch of operations stored at the given address.  The
+     * batches are replayed at an 8-byte aligned position, so a batch
+     * starting at 4 mod 8 (e.g. a piece of a batch split at the offset of
+     * a task) is recorded after a NOOP token, so that its 8-byte
+     * parameters keep their alignment.
+     */
+    public synchronized void recordBatch(long addr, int limit) {
+        if (closed) {
+            return;
+        }
+        int lead = (int)(addr & 7);
+        try {
+            putHeader(TAG_BATCH, 8 + lead + limit);
+            ensureCapacity(8 + lead);
+            region.putLong(System.nanoTime());
+            if (lead != 0) {
+                region.putInt(NOOP);
+            }
+            int offset = 0;
+            while (offset < limit) {
+                if (!region.hasRemaining()) {
+                    map(regionStart + region.position());
+                }
+                int n = Math.min(Math.min(limit - offset, scratch.length),
+                                 region.remaining());
+                unsafe.copyMemory(null, addr + offset,
+                                  scratch, Unsafe.ARRAY_BYTE_BASE_OFFSET, n);
+                region.put(scratch, 0, n);
+                offset += n;
+            }
+            ensureCapacity(8);
+            pad();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the metadata of a surface created by the pipeline.
+     */
+    public synchronized void recordSurface(long pData, long pConfigInfo,
+                                           int type, int width, int height,
+                                           boolean isOpaque)
+    {
+        if (closed) {
+            return;
+        }
+        try {
+            putHeader(TAG_SURFACE, SURFACE_PAYLOAD_SIZE);
+            ensureCapacity(SURFACE_PAYLOAD_SIZE);
+            region.putLong(pData);
+            region.putLong(pConfigInfo);
+            region.putInt(type);
+            region.putInt(width);
+            region.putInt(height);
+            region.putInt(isOpaque ? 1 : 0);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        System.err.println("Error writing queue trace " + path + ":");
+        e.printStackTrace();
+        close();
+    }
+
+    /**
+     * Writes the end of the trace and truncates the file to its actual
+     * length.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long length = regionStart + region.position();
+            if (region.remaining() >= RECORD_HEADER_SIZE) {
+                region.putInt(TAG_END);
+                region.putInt(0);
+                length += RECORD_HEADER_SIZE;
+            }
+            region.force();
+            region = null;
+            file.setLength(length);
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Error closing queue trace " + path + ":");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps native resource addresses found in a traced batch to the
+     * resources used for the replay.
+     */
+    public interface Relocator {
+        /**
+         * Returns the address of the replay surface corresponding to the
+         * given traced surface address, or 0 if there is none.
+         */
+        long relocateSurface(long pData);
+
+        /**
+         * Returns the address of the native config used for the replay.
+         */
+        long relocateConfig(long pConfigInfo);
+    }
+
+    /**
+     * Relocates the native addresses referenced by a sequence of traced
+     * batches.  The operations which cannot be replayed (e.g. those
+     * referencing an unknown surface, glyph images, windows or system
+     * memory surfaces, or disposing resources) are replaced by NOOP tokens.
+     * If the surfaces of a SET_SURFACES operation cannot be relocated (e.g.
+     * a window), all the operations following it are replaced by NOOP
+     * tokens as well, up to the next SET_SURFACES or SET_SCRATCH_SURFACE
+     * operation that can be relocated, possibly in a later batch: they
+     * would otherwise be replayed against the previous destination.
+     */
+    public static final class Relocation {
+        private final Relocator r;
+        /** Set while the current destination could not be relocated. */
+        private boolean dropping;
+
+        public Relocation(Relocator r) {
+            this.r = r;
+        }
+
+        /**
+         * Relocates the batch of operations stored at the given address.
+         * Returns the number of bytes that could be decoded; the remaining
+         * bytes (following an unknown opcode) must not be replayed.
+         */
+        public int relocate(long addr, int limit) {
+            int pos = 0;
+            while (pos < limit) {
+                long p = addr + pos;
+                int opcode = unsafe.getInt(p);
+                int opsize = RenderQueueProfiler.getOpSize(opcode, p);
+                if (opsize <= 0 || pos + opsize > limit) {
+                    return pos;
+                }
+                boolean ok;
+                switch (opcode) {
+                case SET_SURFACES:
+                    ok = relocateSurface(p + 4, r) &&
+                         relocateSurface(p + 12, r);
+                    dropping = !ok;
+                    break;
+                case SET_SCRATCH_SURFACE:
+                    unsafe.putLong(p + 4,
+                                   r.relocateConfig(unsafe.getLong(p + 4)));
+                    ok = true;
+                    dropping = false;
+                    break;
+                case BLIT:
+                    ok = !dropping && relocateSurface(p + 56, r) &&
+                         relocateSurface(p + 64, r);
+                    break;
+                case SET_TEXTURE_PAINT:
+                    ok = !dropping && relocateSurface(p + 12, r);
+                    break;
+                case ENABLE_CONVOLVE_OP:
+                case ENABLE_RESCALE_OP:
+                case ENABLE_LOOKUP_OP:
+                case DISABLE_CONVOLVE_OP:
+                case DISABLE_RESCALE_OP:
+                case DISABLE_LOOKUP_OP:
+                    ok = !dropping && relocateSurface(p + 4, r);
+                    break;
+                case FLUSH_SURFACE:
+                case DISPOSE_SURFACE:
+                case DISPOSE_CONFIG:
+                case SWAP_BUFFERS:
+                case SURFACE_TO_SW_BLIT:
+                case DRAW_GLYPH_LIST:
+                    ok = false;
+                    break;
+                default:
+                    ok = !dropping;
+                    break;
+                }
+                if (!ok) {
+                    for (int i = 0; i < opsize; i += 4) {
+                        unsafe.putInt(p + i, NOOP);
+                    }
+                }
+                pos += opsize;
+            }
+            return pos;
+        }
+    }
+
+    private static boolean relocateSurface(long p, Relocator r) {
+        long pData = r.relocateSurface(unsafe.getLong(p));
+        if (pData == 0L) {
+            return false;
+        }
+        unsafe.putLong(p, pData);
+        return true;
+    }
+
+    /**
+     * Reads a trace file, record by record.
+     */
+    public static final class Reader {
+        private final MappedByteBuffer data;
+        private int tag = TAG_END;
+        private int length;
+        private int payload;
+
+        public Reader(String path) throws IOException {
+            try (RandomAccessFile f = new RandomAccessFile(path, "r")) {
+                long size = f.length();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("trace file too large: " + size);
+                }
+                data = f.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                          0L, size);
+            }
+            data.order(ByteOrder.nativeOrder());
+            if (data.remaining() < HEADER_SIZE ||
+                data.getLong() != MAGIC)
+            {
+                throw new IOException("not a queue trace: " + path);
+            }
+            int version = data.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported trace version: " +
+                                      version);
+            }
+            if (data.getInt() != BYTE_ORDER_MARK) {
+                throw new IOException("trace recorded with another " +
+                                      "byte order: " + path);
+            }
+        }
+
+        /**
+         * Moves to the next record and returns its tag (TAG_END at the end
+         * of the trace).
+         */
+        public int next() {
+            if (tag != TAG_END) {
+                // skip the payload of the current record
+                data.position((payload + length + 7) & ~7);
+            }
+            if (data.remaining() < RECORD_HEADER_SIZE) {
+                tag = TAG_END;
+                return tag;
+            }
+            tag = data.getInt();
+            length = data.getInt();
+            payload = data.position();
+            if (tag == TAG_END || length < 0 ||
+                length > data.remaining())
+            {
+                tag = TAG_END;
+            }
+            return tag;
+        }
+
+        /** Returns the time at which the current batch was recorded. */
+        public long getBatchTime() {
+            return data.getLong(payload);
+        }
+
+        /** Returns the size of the current batch, in bytes. */
+        public int getBatchSize() {
+            return length - 8;
+        }
+
+        /**
+         * Copies the bytes of the current batch into the given array,
+         * which must be large enough.
+         */
+        public void getBatch(byte[] dst) {
+            data.position(payload + 8);
+            data.get(dst, 0, getBatchSize());
+        }
+
+        public long getSurfaceData() {
+            return data.getLong(payload);
+        }
+
+        public long getSurfaceConfig() {
+            return data.getLong(payload + 8);
+        }
+
+        public int getSurfaceType() {
+            return data.getInt(payload + 16);
+        }
+
+        public int getSurfaceWidth() {
+            return data.getInt(payload + 20);
+        }
+
+        public int getSurfaceHeight() {
+            return data.getInt(payload + 24);
+        }
+
+        public boolean isSurfaceOpaque() {
+            return data.getInt(payload + 28) != 0;
+        }
+    }
+}
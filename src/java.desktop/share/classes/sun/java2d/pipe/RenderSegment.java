@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package sun.java2d.pipe;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A RenderSegment is a small, thread-local RenderBuffer on which a single
+ * rendering thread enqueues operations without acquiring the RenderQueue
+ * lock.  The operations are kept on the segment across open()/close()
+ * pairs, and published to the owning RenderQueue once the segment holds
+ * PUBLISH_THRESHOLD bytes, when its buffer is full, or when the context
+ * state changes.  The queue merges the published segments (in the order
+ * they were published) into its own buffer, under the queue lock; the
+ * operations left on the closed segments are merged as well whenever the
+ * queue lock is acquired (see RenderQueue.lock()), so that they are
+ * ordered before any operation enqueued under the queue lock afterwards.
+ *
+ * Since the context state (destination surface, clip, composite, paint...)
+ * cannot be validated without the queue lock, each segment carries a
+ * Validator that records the context validation for the segment; the
+ * validator is invoked while merging, just before the operations of the
+ * segment are copied to the queue.  The operations enqueued on a segment
+ * must therefore only depend on the state set up by its validator.
+ * A sample usage scenario follows:
+ *
+ *     public void drawSomething(...) {
+ *         RenderSegment seg = rq.getSegment();
+ *         if (seg == null) {
+ *             // segments are disabled, use the queue as usual
+ *             ...
+ *             return;
+ *         }
+ *         seg.open(validator);
+ *         try {
+ *             RenderBuffer buf = seg.getBuffer();
+ *             seg.ensureCapacity(4);
+ *             buf.putInt(DRAW_SOMETHING);
+ *             ...
+ *         } finally {
+ *             seg.close();
+ *         }
+ *     }
+ *
+ * As for the RenderQueue, the ensureCapacityAndAlignment() method must be
+ * used for operations involving 8-byte parameters; segments are always
+ * merged at an 8-byte aligned position in the queue.
+ */
+public final class RenderSegment {
+
+    /**
+     * Records the context validation required by the operations of a
+     * segment.  The validate() method is invoked with the queue lock held,
+     * possibly from another thread than the one that enqueued the
+     * operations, so implementations must only rely on immutable state.
+     */
+    public interface Validator {
+        void validate();
+
+        /**
+         * Invoked (with the queue lock held) once the operations of the
+         * last segment using this validator have been merged.
+         */
+        void dispose();
+    }
+
+    /** The size of the buffer of a segment, in bytes. */
+    static final int SEGMENT_SIZE = 32*1024;
+
+    /**
+     * The number of bytes past which the pending operations are published
+     * when the segment is closed.
+     */
+    static final int PUBLISH_THRESHOLD = SEGMENT_SIZE / 4;
+
+    private final RenderQueue rq;
+    final RenderBuffer buf;
+    final ArrayList<Object> refList;
+    Validator validator;
+
+    /**
+     * Set while the segment is open, or while its pending operations are
+     * merged by the owner of the queue lock.
+     */
+    private final AtomicBoolean busy = new AtomicBoolean();
+    /**
+     * Set while the segment is registered with the queue as holding
+     * unpublished operations (see RenderQueue.registerSegment()).
+     */
+    boolean registered;
+    /**
+     * Set on a published copy holding the last operations of its
+     * validator, which is disposed once the copy has been merged.
+     */
+    boolean disposeValidator;
+
+    RenderSegment(RenderQueue rq) {
+        this.rq = rq;
+        buf = RenderBuffer.allocate(SEGMENT_SIZE);
+        refList = new ArrayList<Object>();
+    }
+
+    /**
+     * Opens this segment for operations depending on the state set up by
+     * the given validator.
+     */
+    public void open(Validator validator) {
+        while (!busy.compareAndSet(false, true)) {
+            // the queue lock owner is merging the pending operations
+            Thread.yield();
+        }
+        if (validator != this.validator) {
+            try {
+                if (this.validator != null) {
+                    // the pending operations depend on the previous
+                    // validator, which is no longer used afterwards
+                    publish(true);
+                }
+            } catch (Throwable t) {
+                busy.set(false);
+                throw t;
+            }
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * Closes this segment.  The pending operations are published to the
+     * queue if they exceed PUBLISH_THRESHOLD bytes; otherwise they are
+     * kept for the following operations, until the queue lock is acquired.
+     */
+    public void close() {
+        try {
+            if (buf.position() >= PUBLISH_THRESHOLD) {
+                publish(false);
+            } else if (!registered &&
+                       (buf.position() > 0 || !refList.isEmpty()))
+            {
+                registered = true;
+                rq.registerSegment(this);
+            }
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    /**
+     * Attempts to take over this (closed) segment in order to merge its
+     * pending operations.  If successful, this method returns true,
+     * indicating that the caller is responsible for calling
+     * {@code release}; otherwise the segment is open.
+     */
+    boolean tryAcquire() {
+        return busy.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the segment taken over by {@code tryAcquire}.
+     */
+    void release() {
+        busy.set(false);
+    }
+
+    /**
+     * Returns the validator of this segment, or null if the segment has
+     * never been opened.
+     */
+    public Validator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Returns the encapsulated RenderBuffer object.
+     */
+    public RenderBuffer getBuffer() {
+        return buf;
+    }
+
+    /**
+     * See RenderQueue.addReference().  The references are kept until the
+     * queue into which the segment is merged has been flushed.
+     */
+    public void addReference(Object ref) {
+        refList.add(ref);
+    }
+
+    /**
+     * Ensures that there will be enough room on the underlying buffer for
+     * the following operation.  If the operation will not fit given the
+     * remaining space, the pending operations are published to the queue,
+     * leaving an empty buffer for the impending operation.
+     *
+     * @param opsize size (in bytes) of the following operation
+     */
+    public void ensureCapacity(int opsize) {
+        if (buf.remaining() < opsize) {
+            if (opsize > SEGMENT_SIZE) {
+                throw new InternalError("operation too large for segment: " +
+                                        opsize);
+            }
+            publish(false);
+        }
+    }
+
+    /**
+     * See RenderQueue.ensureCapacityAndAlignment().
+     */
+    public void ensureCapacityAndAlignment(int opsize,
+                                          int first8ByteValueOffset)
+    {
+        ensureCapacity(opsize + 4);
+        ensureAlignment(first8ByteValueOffset);
+    }
+
+    /**
+     * See RenderQueue.ensureAlignment().
+     */
+    public void ensureAlignment(int first8ByteValueOffset) {
+        int first8ByteValuePosition = buf.position() + first8ByteValueOffset;
+        if ((first8ByteValuePosition & 7) != 0) {
+            buf.putInt(BufferedOpCodes.NOOP);
+        }
+    }
+
+    /**
+     * Publishes the pending operations to the queue.  If {@code last} is
+     * true, the current validator is disposed once they have been merged
+     * (a copy is published even if there are no pending operations, so
+     * that the validator is disposed after the copies published earlier).
+     */
+    private void publish(boolean last) {
+        if (last || buf.position() > 0 || !refList.isEmpty()) {
+            rq.publishSegment(this, last);
+        }
+        buf.clear();
+        refList.clear();
+    }
+}
@@ -53,7 +53,7 @@ public interface XRBackend {
 
     public long createGC(int drawable);
 
-    public void freeGC(long gc); /* TODO: Use!! */
+    public void freeGC(long gc);
 
     public void copyArea(int src, int dst, long gc, int srcx, int srcy,
                          int width, int height, int dstx, int dsty);
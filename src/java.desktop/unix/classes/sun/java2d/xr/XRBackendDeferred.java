@@ -29,8 +29,17 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import sun.font.GlyphList;
+import sun.font.XRGlyphCacheEntry;
 import sun.java2d.pipe.Region;
+import sun.java2d.pipe.SpanIterator;
+import static sun.java2d.xr.XRUtils.MAX_CORE_REQUEST_LENGTH;
 import static sun.java2d.xr.XRUtils.XDoubleToFixed;
+import static sun.java2d.xr.XRUtils.getEncodedRequestLength;
+import static sun.java2d.xr.XRUtils.putRectangles;
+import static sun.java2d.xr.XRUtils.putRequestHeader;
 
 /**
  * XRBackendDeferred
@@ -49,9 +58,44 @@ public class XRBackendDeferred extends XRBackendNative {
     private static final byte RENDER_COMPOSITE_GLYPH32 = 25;
     private static final byte RENDER_CREATE_LINEAR_GRADIENT = 34;
     private static final byte RENDER_CREATE_RADIAL_GRADIENT = 35;
+    private static final byte RENDER_ADD_GLYPHS = 20;
+    private static final byte RENDER_FREE_GLYPHS = 22;
+    private static final byte CREATE_PIXMAP = 53;
     private static final byte FREE_PIXMAP = 54;
+    private static final byte CREATE_GC = 55;
+    private static final byte CHANGE_GC = 56;
+    private static final byte SET_CLIP_RECTANGLES = 59;
+    private static final byte FREE_GC = 60;
+    private static final byte COPY_AREA = 62;
+    private static final byte POLY_FILL_RECTANGLE = 70;
+
+    private static final int GC_FUNCTION = 1 << 0;
+    private static final int GC_FOREGROUND = 1 << 2;
+    private static final int GC_GRAPHICS_EXPOSURES = 1 << 16;
+    private static final int GC_CLIP_MASK = 1 << 19;
+    private static final int GX_COPY = 3;
+    private static final int GX_XOR = 6;
+    private static final byte YX_BANDED = 3;
 
     private static final int BUFFER_SIZE = 128*1024; // 128K
+
+    /**
+     * The size up to which the buffer grows to hold a single request
+     * larger than BUFFER_SIZE (see initNextRequest()).
+     */
+    private static final int MAX_BUFFER_SIZE = 4*1024*1024; // 4M
+
+    /**
+     * The maximum length (in 4 byte units, including the extended length
+     * field) of a request: the maximum request length of the connection
+     * (set natively), which exceeds MAX_CORE_REQUEST_LENGTH when the
+     * BIG-REQUESTS extension is enabled, bounded by MAX_BUFFER_SIZE.
+     * Requests longer than MAX_CORE_REQUEST_LENGTH are encoded with the
+     * extended length field (see XRUtils.putRequestHeader()), and larger
+     * batches are split
+     * into several requests (where the protocol allows it).
+     */
+    private static int MAX_REQUEST_LENGTH = MAX_CORE_REQUEST_LENGTH;
     private static int RENDER_MAJOR_OPCODE;
     
     ByteBuffer buffer;
@@ -62,6 +106,48 @@ public class XRBackendDeferred extends XRBackendNative {
    
     
     AATileBufMan aaTileMan;
+
+    /**
+     * The protocol-side state of an Xlib GC.  While the socket is taken,
+     * the GC operations are encoded in the buffer, on a GC created with a
+     * client-generated XID (once the GC is first used for drawing), which
+     * is brought up to date with this state (the attributes flagged as
+     * dirty) right before it is used.  The function, foreground and
+     * exposures are still set on the Xlib GC too, as Xlib only caches them
+     * until the GC is used, but its clip is only set when the Xlib GC is
+     * used: while the socket is not taken, or when the clip cannot be
+     * encoded in a single request.
+     *
+     * The states are keyed by the Xlib GC, so the GC must be freed
+     * through freeGC(), which also frees its protocol GC (see
+     * XRSurfaceData, which creates its GC through the backend).
+     */
+    private static final class GCState {
+        int xid;
+        int function = GX_COPY;
+        int foreground;
+        boolean exposures = true;
+        Region clip;
+        boolean clipTooLarge;
+        boolean xlibClipValid = true;
+        int dirty;
+    }
+
+    /**
+     * The position in the buffer of the last FillRectangles request, and
+     * the position right after it: a FillRectangles request with the same
+     * destination, operator and color following it directly is merged
+     * into it (see extendFill()).  The same goes for Composite requests
+     * repeating the previous one (see renderComposite()).
+     */
+    private int lastFillStart, lastFillEnd = -1;
+    private int lastCompositeEnd = -1;
+
+    private final HashMap<Long, GCState> gcStates =
+        new HashMap<Long, GCState>();
+    // the protocol GCs freed while the socket was not taken
+    private final GrowableIntArray pendingFreeGCs = new GrowableIntArray(1, 8);
+    private final GrowableRectArray clipRects = new GrowableRectArray(32);
     
     //TODO: Check for RadialGradient Correctness
     //TODO: Check for Text32 mask attribute
@@ -71,6 +157,7 @@ public class XRBackendDeferred extends XRBackendNative {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
 
         nativeInit(buffer);
+        MAX_REQUEST_LENGTH = Math.min(MAX_REQUEST_LENGTH, MAX_BUFFER_SIZE / 4);
         
         socketTaken = false;
       
@@ -93,6 +180,11 @@ public class XRBackendDeferred extends XRBackendNative {
             }
              
             xcbReqSinceFlush = 0;
+
+            for (int i = 0; i < pendingFreeGCs.getSize(); i++) {
+                putFreeGC(pendingFreeGCs.getInt(i));
+            }
+            pendingFreeGCs.clear();
         }
     }
 
@@ -124,6 +216,8 @@ public class XRBackendDeferred extends XRBackendNative {
             
             buffer.clear();
             requestCounter = 0;
+            lastFillEnd = -1;
+            lastCompositeEnd = -1;
             
             if(!handoff)  {
                 forceSocketReturn();
@@ -143,6 +237,15 @@ public class XRBackendDeferred extends XRBackendNative {
     
     private native void nativeInit(ByteBuffer protoBuf);
 
+    private native void setProtocolBuffer(ByteBuffer protoBuf);
+
+    /**
+     * Returns true if a request of the given length can be encoded.
+     */
+    private static boolean fits(int requestLength) {
+        return getEncodedRequestLength(requestLength) <= MAX_REQUEST_LENGTH;
+    }
+
     private void initNextRequest(int requestLength) {
         takeSocket();
 
@@ -151,12 +254,23 @@ public class XRBackendDeferred extends XRBackendNative {
             takeSocket();
         }
 
+        int requestBytes = getEncodedRequestLength(requestLength) * 4;
         int maskTilesQueued = aaTileMan.getActiveTileBuffer().getTileCount();
         if ((maskTilesQueued == 0 && buffer.position() > 4 * 1024)
-                || (buffer.position() + (requestLength * 4) > BUFFER_SIZE)) {
+                || (buffer.position() + requestBytes > buffer.capacity())) {
             flushBuffer(false);
         } 
 
+        if (requestBytes > buffer.capacity()) {
+            // a large request (up to MAX_REQUEST_LENGTH): the buffer is
+            // empty, and is kept for the next large requests
+            int size = Math.min(MAX_BUFFER_SIZE,
+                                Integer.highestOneBit(requestBytes - 1) << 1);
+            buffer = ByteBuffer.allocateDirect(size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            setProtocolBuffer(buffer);
+        }
+
         requestCounter++;
         xcbReqSinceFlush++;
     }
@@ -166,13 +280,19 @@ public class XRBackendDeferred extends XRBackendNative {
             int x, int y, int width, int height) {
       
         if(socketTaken) {
-            initNextRequest(7);
-            putRectHeader(dst, op, color, 7);
+            boolean extend = canExtendFill(dst, op, color, 1);
+            if (!extend) {
+                initNextRequest(7);
+                lastFillStart = buffer.position();
+                putRectHeader(dst, op, color, 7);
+            }
 
             buffer.putShort((short) x);
             buffer.putShort((short) y);
             buffer.putShort((short) width);
             buffer.putShort((short) height);
+
+            endFill(extend);
         } else {
             super.renderRectangle(dst, op, color, x, y, width, height);
         }
@@ -181,12 +301,23 @@ public class XRBackendDeferred extends XRBackendNative {
     @Override
     public void renderRectangles(int dst, byte op, XRColor color,
             GrowableRectArray rects) { 
-        int reqLen = 5 + 2 * rects.getSize();
-
-        if (socketTaken && reqLen <= BUFFER_SIZE) {
-            initNextRequest(reqLen);
-            putRectHeader(dst, op, color, reqLen);
-            putRects(rects);
+        if (socketTaken) {
+            // large batches (e.g. the spans of complex shapes) are split
+            // into as many requests as needed, which are only limited by
+            // the buffer size when BIG-REQUESTS is enabled
+            int maxRects = (MAX_REQUEST_LENGTH - 6) / 2;
+            for (int first = 0; first < rects.getSize(); first += maxRects) {
+                int cnt = Math.min(maxRects, rects.getSize() - first);
+                boolean extend = canExtendFill(dst, op, color, cnt);
+                if (!extend) {
+                    int reqLen = 5 + 2 * cnt;
+                    initNextRequest(reqLen);
+                    lastFillStart = buffer.position();
+                    putRectHeader(dst, op, color, reqLen);
+                }
+                putRects(rects, first, cnt);
+                endFill(extend);
+            }
         } else {
             super.renderRectangles(dst, op, color, rects);
         }
@@ -237,6 +368,7 @@ public class XRBackendDeferred extends XRBackendNative {
         
         if(socketTaken) {
             initNextRequest(9);
+            int start = buffer.position();
 
             buffer.put((byte) RENDER_MAJOR_OPCODE);
             buffer.put(RENDER_COMPOSITE);
@@ -259,6 +391,21 @@ public class XRBackendDeferred extends XRBackendNative {
             buffer.putShort((short) dstY);
             buffer.putShort((short) width);
             buffer.putShort((short) height);
+
+            // A Composite request covers a single rectangle, so requests
+            // differing by their coordinates cannot be merged; but an
+            // exact repeat of the previous request is dropped if its
+            // operator gives the same result when applied twice
+            if (start == lastCompositeEnd && src != dst && mask != dst
+                && (op == XRUtils.PictOpClear || op == XRUtils.PictOpSrc
+                    || op == XRUtils.PictOpDst)
+                && isRepeatedRequest(start, 36)) {
+                buffer.position(start);
+                requestCounter--;
+                xcbReqSinceFlush--;
+            } else {
+                lastCompositeEnd = buffer.position();
+            }
         } else {
              super.renderComposite(op, src, mask, dst, srcX, srcY, maskX, maskY, dstX, dstY, width, height);
         }
@@ -350,15 +497,14 @@ public class XRBackendDeferred extends XRBackendNative {
             int[] pixels, int repeat) {
         int reqLen = 7 + fractions.length + 2 * pixels.length;
 
-        if (socketTaken && reqLen < BUFFER_SIZE) {
+        if (socketTaken && fits(reqLen)) {
 
             int xid = generateXID();
 
             initNextRequest(reqLen);
 
-            buffer.put((byte) RENDER_MAJOR_OPCODE);
-            buffer.put(RENDER_CREATE_LINEAR_GRADIENT);
-            buffer.putShort((short) reqLen);
+            putHeader(RENDER_MAJOR_OPCODE, RENDER_CREATE_LINEAR_GRADIENT,
+                      reqLen);
 
             buffer.putInt(xid);
 
@@ -384,14 +530,13 @@ public class XRBackendDeferred extends XRBackendNative {
 
         int reqLen = 8 + fractions.length + 2 * pixels.length;
 
-        if (socketTaken && reqLen < BUFFER_SIZE) {
+        if (socketTaken && fits(reqLen)) {
             int xid = generateXID();
 
             initNextRequest(reqLen);
 
-            buffer.put((byte) RENDER_MAJOR_OPCODE);
-            buffer.put(RENDER_CREATE_RADIAL_GRADIENT);
-            buffer.putShort((short) reqLen);
+            putHeader(RENDER_MAJOR_OPCODE, RENDER_CREATE_RADIAL_GRADIENT,
+                      reqLen);
 
             buffer.putInt(xid);
 
@@ -438,12 +583,13 @@ public class XRBackendDeferred extends XRBackendNative {
         }
         activeGlyphSet = elts.getGlyphSet(0);
 
-        if (len <= BUFFER_SIZE) {
+        // the elements cannot be split into several requests, as the
+        // position of the glyphs of an element depends on the advances
+        // of the previous glyphs, which are only known to the server
+        if (fits(len)) {
             initNextRequest(len);
 
-            buffer.put((byte) RENDER_MAJOR_OPCODE);
-            buffer.put(RENDER_COMPOSITE_GLYPH32);
-            buffer.putShort((short) len);
+            putHeader(RENDER_MAJOR_OPCODE, RENDER_COMPOSITE_GLYPH32, len);
 
             //TODO: Implement glyphset change!top
             buffer.put(op); //op
@@ -481,6 +627,331 @@ public class XRBackendDeferred extends XRBackendNative {
         }
     }
 
+    @Override
+    public int createPixmap(int drawable, int depth, int width, int height) {
+        if (socketTaken) {
+            int xid = generateXID();
+
+            initNextRequest(4);
+
+            buffer.put(CREATE_PIXMAP);
+            buffer.put((byte) depth);
+            buffer.putShort((short) 4);
+
+            buffer.putInt(xid);
+            buffer.putInt(drawable);
+            buffer.putShort((short) width);
+            buffer.putShort((short) height);
+
+            return xid;
+        } else {
+            return super.createPixmap(drawable, depth, width, height);
+        }
+    }
+
+    @Override
+    public void freeGC(long gc) {
+        GCState state = gcStates.remove(gc);
+        if (state != null && state.xid != 0) {
+            if (socketTaken) {
+                putFreeGC(state.xid);
+            } else {
+                pendingFreeGCs.addInt(state.xid);
+            }
+        }
+        super.freeGC(gc);
+    }
+
+    @Override
+    public void setGCExposures(long gc, boolean exposure) {
+        GCState state = getGCState(gc);
+        state.exposures = exposure;
+        state.dirty |= GC_GRAPHICS_EXPOSURES;
+        super.setGCExposures(gc, exposure);
+    }
+
+    @Override
+    public void setGCForeground(long gc, int pixel) {
+        GCState state = getGCState(gc);
+        state.foreground = pixel;
+        state.dirty |= GC_FOREGROUND;
+        super.setGCForeground(gc, pixel);
+    }
+
+    @Override
+    public void setGCMode(long gc, boolean copy) {
+        GCState state = getGCState(gc);
+        state.function = copy ? GX_COPY : GX_XOR;
+        state.dirty |= GC_FUNCTION;
+        super.setGCMode(gc, copy);
+    }
+
+    @Override
+    public void setGCClipRectangles(long gc, Region clip) {
+        GCState state = getGCState(gc);
+        state.clip = clip;
+        state.clipTooLarge = !fits(3 + 2 * getClipRects(clip));
+        state.xlibClipValid = false;
+        state.dirty |= GC_CLIP_MASK;
+    }
+
+    @Override
+    public void copyArea(int src, int dst, long gc, int srcx, int srcy,
+                         int width, int height, int dstx, int dsty) {
+        GCState state = getGCState(gc);
+        if (!socketTaken || state.clipTooLarge) {
+            validateXlibGC(state, gc);
+            super.copyArea(src, dst, gc, srcx, srcy, width, height,
+                           dstx, dsty);
+            return;
+        }
+        int gcXid = validateGC(state, dst);
+
+        initNextRequest(7);
+
+        buffer.put(COPY_AREA);
+        buffer.put((byte) 0);
+        buffer.putShort((short) 7);
+
+        buffer.putInt(src);
+        buffer.putInt(dst);
+        buffer.putInt(gcXid);
+        buffer.putShort((short) srcx);
+        buffer.putShort((short) srcy);
+        buffer.putShort((short) dstx);
+        buffer.putShort((short) dsty);
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+    }
+
+    @Override
+    public void GCRectangles(int drawable, long gc, GrowableRectArray rects) {
+        GCState state = getGCState(gc);
+        if (!socketTaken || state.clipTooLarge) {
+            validateXlibGC(state, gc);
+            super.GCRectangles(drawable, gc, rects);
+            return;
+        }
+        int gcXid = validateGC(state, drawable);
+
+        int maxRects = (MAX_REQUEST_LENGTH - 4) / 2;
+        for (int first = 0; first < rects.getSize(); first += maxRects) {
+            int cnt = Math.min(maxRects, rects.getSize() - first);
+            int reqLen = 3 + 2 * cnt;
+
+            initNextRequest(reqLen);
+
+            putHeader(POLY_FILL_RECTANGLE, 0, reqLen);
+
+            buffer.putInt(drawable);
+            buffer.putInt(gcXid);
+            putRects(rects, first, cnt);
+        }
+    }
+
+    @Override
+    public void XRenderAddGlyphs(int glyphSet, GlyphList gl,
+                                 List<XRGlyphCacheEntry> cacheEntries,
+                                 byte[] pixelData) {
+        int glyphCnt = cacheEntries.size();
+        int reqLen = 3 + 4 * glyphCnt + (pixelData.length + 3) / 4;
+
+        if (socketTaken && fits(reqLen)) {
+            initNextRequest(reqLen);
+
+            putHeader(RENDER_MAJOR_OPCODE, RENDER_ADD_GLYPHS, reqLen);
+
+            buffer.putInt(glyphSet);
+            buffer.putInt(glyphCnt);
+            for (int i = 0; i < glyphCnt; i++) {
+                buffer.putInt(cacheEntries.get(i).getGlyphID());
+            }
+            for (int i = 0; i < glyphCnt; i++) {
+                // the same GLYPHINFO as XRAddGlyphsNative
+                XRGlyphCacheEntry entry = cacheEntries.get(i);
+                buffer.putShort((short) entry.getWidth());
+                buffer.putShort((short) entry.getHeight());
+                buffer.putShort((short) -entry.getXOff());
+                buffer.putShort((short) -entry.getYOff());
+                buffer.putShort((short) Math.round(entry.getXAdvance()));
+                buffer.putShort((short) Math.round(entry.getYAdvance()));
+            }
+            buffer.put(pixelData);
+            for (int pad = pixelData.length; (pad & 3) != 0; pad++) {
+                buffer.put((byte) 0);
+            }
+        } else {
+            super.XRenderAddGlyphs(glyphSet, gl, cacheEntries, pixelData);
+        }
+    }
+
+    @Override
+    public void XRenderFreeGlyphs(int glyphSet, int[] gids) {
+        if (socketTaken) {
+            int maxGlyphs = MAX_REQUEST_LENGTH - 3;
+            for (int first = 0; first < gids.length; first += maxGlyphs) {
+                int cnt = Math.min(maxGlyphs, gids.length - first);
+                int reqLen = 2 + cnt;
+
+                initNextRequest(reqLen);
+
+                putHeader(RENDER_MAJOR_OPCODE, RENDER_FREE_GLYPHS, reqLen);
+
+                buffer.putInt(glyphSet);
+                for (int i = first; i < first + cnt; i++) {
+                    buffer.putInt(gids[i]);
+                }
+            }
+        } else {
+            super.XRenderFreeGlyphs(glyphSet, gids);
+        }
+    }
+
+    private GCState getGCState(long gc) {
+        GCState state = gcStates.get(gc);
+        if (state == null) {
+            state = new GCState();
+            gcStates.put(gc, state);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the XID of the protocol GC of the given state, creating it
+     * (for drawables of the same depth as the given one) or bringing its
+     * dirty attributes up to date if needed.  Must only be called while
+     * the socket is taken, and if the clip fits in a single request.
+     */
+    private int validateGC(GCState state, int drawable) {
+        if (state.xid == 0) {
+            state.xid = generateXID();
+
+            initNextRequest(7);
+
+            buffer.put(CREATE_GC);
+            buffer.put((byte) 0);
+            buffer.putShort((short) 7);
+
+            buffer.putInt(state.xid);
+            buffer.putInt(drawable);
+            buffer.putInt(GC_FUNCTION | GC_FOREGROUND | GC_GRAPHICS_EXPOSURES);
+            buffer.putInt(state.function);
+            buffer.putInt(state.foreground);
+            buffer.putInt(state.exposures ? 1 : 0);
+
+            // a new GC has no clip
+            state.dirty = (state.clip != null) ? GC_CLIP_MASK : 0;
+        }
+
+        boolean clipDirty = (state.dirty & GC_CLIP_MASK) != 0;
+        int mask = state.dirty & ~GC_CLIP_MASK;
+        if (clipDirty && state.clip == null) {
+            mask |= GC_CLIP_MASK; // set to None
+        }
+        if (mask != 0) {
+            putChangeGC(state, mask);
+        }
+        if (clipDirty && state.clip != null) {
+            getClipRects(state.clip);
+            putClipRects(SET_CLIP_RECTANGLES, YX_BANDED, state.xid);
+        }
+        state.dirty = 0;
+
+        return state.xid;
+    }
+
+    /**
+     * Sets the clip of the given state on the Xlib GC, before it is used.
+     */
+    private void validateXlibGC(GCState state, long gc) {
+        if (!state.xlibClipValid) {
+            super.setGCClipRectangles(gc, state.clip);
+            state.xlibClipValid = true;
+        }
+    }
+
+    private void putFreeGC(int gcXid) {
+        initNextRequest(2);
+
+        buffer.put(FREE_GC);
+        buffer.put((byte) 0);
+        buffer.putShort((short) 2);
+        buffer.putInt(gcXid);
+    }
+
+    /**
+     * Encodes a ChangeGC request setting the attributes of the given mask
+     * (among the function, foreground, exposures and clip mask, which can
+     * only be set to None) to the values of the given state.
+     */
+    private void putChangeGC(GCState state, int mask) {
+        int reqLen = 3 + Integer.bitCount(mask);
+
+        initNextRequest(reqLen);
+
+        buffer.put(CHANGE_GC);
+        buffer.put((byte) 0);
+        buffer.putShort((short) reqLen);
+
+        buffer.putInt(state.xid);
+        buffer.putInt(mask);
+        // the values are ordered by their bit in the mask
+        if ((mask & GC_FUNCTION) != 0) {
+            buffer.putInt(state.function);
+        }
+        if ((mask & GC_FOREGROUND) != 0) {
+            buffer.putInt(state.foreground);
+        }
+        if ((mask & GC_GRAPHICS_EXPOSURES) != 0) {
+            buffer.putInt(state.exposures ? 1 : 0);
+        }
+        if ((mask & GC_CLIP_MASK) != 0) {
+            buffer.putInt(0); // None
+        }
+    }
+
+    /**
+     * Stores the rectangles of the given clip (none if it is null) in
+     * clipRects, and returns their count.
+     */
+    private int getClipRects(Region clip) {
+        clipRects.clear();
+        if (clip == null) {
+            return 0;
+        } else if (clip.isRectangular()) {
+            clipRects.pushRectValues(clip.getLoX(), clip.getLoY(),
+                                     clip.getWidth(), clip.getHeight());
+        } else {
+            SpanIterator si = clip.getSpanIterator();
+            int[] span = new int[4];
+            while (si.nextSpan(span)) {
+                clipRects.pushRectValues(span[0], span[1],
+                                         span[2] - span[0],
+                                         span[3] - span[1]);
+            }
+        }
+        return clipRects.getSize();
+    }
+
+    /**
+     * Encodes a core SetClipRectangles or a Render SetPictureClipRectangles
+     * request (which only differ by their first two bytes) with the
+     * rectangles stored in clipRects, which must fit in a single request:
+     * each request replaces the whole clip, so it cannot be split.
+     */
+    private void putClipRects(int opcode, int data, int xid) {
+        int reqLen = 3 + 2 * clipRects.getSize();
+
+        initNextRequest(reqLen);
+
+        putHeader(opcode, data, reqLen);
+
+        buffer.putInt(xid);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        putRects(clipRects, 0, clipRects.getSize());
+    }
+
     @Override
     public void setClipRectangles(int picture, Region clip) {
         if (socketTaken && clip == null) {
@@ -488,6 +959,10 @@ public class XRBackendDeferred extends XRBackendNative {
         } else if (socketTaken && clip.isRectangular()) {
             XRSetClipRectangle(picture, clip.getLoX(), clip.getLoY(),
                     clip.getHiX(), clip.getHiY());
+        } else if (socketTaken && fits(3 + 2 * getClipRects(clip))) {
+            // the spans of a complex clip are y-x banded
+            putClipRects(RENDER_MAJOR_OPCODE,
+                         RENDER_SET_PICTURE_CLIP_RECTANGLES, picture);
         } else {
             super.setClipRectangles(picture, clip);
         }
@@ -539,10 +1014,62 @@ public class XRBackendDeferred extends XRBackendNative {
         buffer.putShort((short) XRUtils.clampToUShort((y2 - y)));
     }
 
+    /**
+     * Returns true if the given rectangles can be appended to the last
+     * FillRectangles request, which is the last request in the buffer.
+     */
+    private boolean canExtendFill(int dst, byte op, XRColor color,
+                                  int rectCnt) {
+        if (buffer.position() != lastFillEnd) {
+            return false;
+        }
+        // only requests with a 16 bit length field are extended
+        int reqLen = (lastFillEnd - lastFillStart) / 4 + 2 * rectCnt;
+        return reqLen <= Math.min(MAX_CORE_REQUEST_LENGTH, MAX_REQUEST_LENGTH)
+            && lastFillEnd + 8 * rectCnt <= buffer.capacity()
+            && buffer.get(lastFillStart + 4) == op
+            && buffer.getInt(lastFillStart + 8) == dst
+            && buffer.getShort(lastFillStart + 12) == (short) color.red
+            && buffer.getShort(lastFillStart + 14) == (short) color.green
+            && buffer.getShort(lastFillStart + 16) == (short) color.blue
+            && buffer.getShort(lastFillStart + 18) == (short) color.alpha;
+    }
+
+    /**
+     * Completes the FillRectangles request at lastFillStart, after its
+     * rectangles have been written (patching its length if it has been
+     * extended).
+     */
+    private void endFill(boolean extended) {
+        lastFillEnd = buffer.position();
+        if (extended) {
+            buffer.putShort(lastFillStart + 2,
+                            (short) ((lastFillEnd - lastFillStart) / 4));
+        }
+    }
+
+    /**
+     * Returns true if the request of the given length (in bytes) at the
+     * given position repeats the one right before it.
+     */
+    private boolean isRepeatedRequest(int start, int length) {
+        if (start < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i += 4) {
+            if (buffer.getInt(start + i) != buffer.getInt(start - length + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putHeader(int opcode, int data, int reqLen) {
+        putRequestHeader(buffer, opcode, data, reqLen);
+    }
+
     private void putRectHeader(int dst, byte op, XRColor color, int reqLen) {
-        buffer.put((byte) RENDER_MAJOR_OPCODE);
-        buffer.put(RENDER_FILL_RECTANGLES);
-        buffer.putShort((short) reqLen);
+        putHeader(RENDER_MAJOR_OPCODE, RENDER_FILL_RECTANGLES, reqLen);
         buffer.put(op); //op
 
         //padding
@@ -555,12 +1082,11 @@ public class XRBackendDeferred extends XRBackendNative {
     }
 
     private void putRects(GrowableRectArray rects) {
-        for (int i = 0; i < rects.getSize(); i++) {
-            buffer.putShort((short) rects.getX(i));
-            buffer.putShort((short) rects.getY(i));
-            buffer.putShort((short) rects.getWidth(i));
-            buffer.putShort((short) rects.getHeight(i));
-        }
+        putRects(rects, 0, rects.getSize());
+    }
+
+    private void putRects(GrowableRectArray rects, int first, int cnt) {
+        putRectangles(buffer, rects, first, cnt);
     }
 
     private void putXRColor(XRColor color) {
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package sun.java2d.xr;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.io.PrintStream;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashMap;
+import java.util.List;
+import sun.awt.util.ThreadGroupUtils;
+import sun.font.GlyphList;
+import sun.font.XRGlyphCacheEntry;
+import sun.java2d.pipe.Region;
+import sun.security.action.GetPropertyAction;
+
+/**
+ * XRBackend wrapping another backend, which shadows the transform, repeat,
+ * filter and clip of each Picture, and drops the requests which would not
+ * change them.  The state of a Picture is unknown (so the first request
+ * setting each attribute is passed on) until it has been set through this
+ * backend, and is forgotten when the Picture is freed, or when its XID is
+ * handed out again.  Pictures freed natively (along with their
+ * XRSurfaceData) must be forgotten through forgetPicture().
+ *
+ * The backend is only installed if the sun.java2d.xr.shadow system
+ * property is set to true.  The number of requests and of dropped requests
+ * are dumped at exit if the sun.java2d.xr.stats system property is set to
+ * true.
+ */
+public class XRBackendShadow implements XRBackend {
+
+    public static final int TRANSFORM = 0;
+    public static final int REPEAT = 1;
+    public static final int FILTER = 2;
+    public static final int CLIP = 3;
+
+    private static final String[] NAMES = {
+        "transform", "repeat", "filter", "clip"
+    };
+
+    /** Whether the requests are dumped at exit. */
+    private static final boolean useStats =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.xr.stats")));
+
+    private static final class PictureState {
+        AffineTransform transform;
+        int repeat = -1;
+        int filter = -1;
+        boolean clipKnown;
+        Region clip;
+    }
+
+    private final XRBackend con;
+    private final HashMap<Integer, PictureState> states =
+        new HashMap<Integer, PictureState>();
+
+    private final long[] requests = new long[NAMES.length];
+    private final long[] hits = new long[NAMES.length];
+
+    public XRBackendShadow(XRBackend con) {
+        this.con = con;
+
+        if (useStats) {
+            AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+                Thread t = new Thread(ThreadGroupUtils.getRootThreadGroup(),
+                                      () -> dump(System.err),
+                                      "XRBackendShadow Dumper", 0, false);
+                Runtime.getRuntime().addShutdownHook(t);
+                return null;
+            });
+        }
+    }
+
+    private PictureState getState(int picture) {
+        PictureState state = states.get(picture);
+        if (state == null) {
+            state = new PictureState();
+            states.put(picture, state);
+        }
+        return state;
+    }
+
+    /**
+     * Returns true if the given request is needed, otherwise counts it as
+     * a hit.
+     */
+    private boolean isNeeded(int kind, boolean changed) {
+        requests[kind]++;
+        if (!changed) {
+            hits[kind]++;
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the number of requests of the given kind (TRANSFORM, REPEAT,
+     * FILTER or CLIP) issued through this backend.
+     */
+    public long getRequestCount(int kind) {
+        return requests[kind];
+    }
+
+    /**
+     * Returns the number of requests of the given kind which have been
+     * dropped, as they would not have changed the state of the Picture.
+     */
+    public long getHitCount(int kind) {
+        return hits[kind];
+    }
+
+    /**
+     * Forgets the state of the given Picture, which has been (or is about
+     * to be) freed natively, or created natively with an XID which may
+     * have been handed out before.
+     */
+    public void forgetPicture(int picture) {
+        states.remove(picture);
+    }
+
+    void dump(PrintStream ps) {
+        ps.println("XRBackendShadow: " + states.size() + " pictures");
+        for (int i = 0; i < NAMES.length; i++) {
+            ps.println("  " + NAMES[i] + ": requests=" + requests[i] +
+                       " hits=" + hits[i]);
+        }
+    }
+
+    public void initResources(int parentXID) {
+        con.initResources(parentXID);
+    }
+
+    public void freePicture(int picture) {
+        states.remove(picture);
+        con.freePicture(picture);
+    }
+
+    public void freePixmap(int pixmap) {
+        con.freePixmap(pixmap);
+    }
+
+    public int createPixmap(int drawable, int depth, int width, int height) {
+        return con.createPixmap(drawable, depth, width, height);
+    }
+
+    public int createPicture(int drawable, int formatID) {
+        int picture = con.createPicture(drawable, formatID);
+        states.remove(picture);
+        return picture;
+    }
+
+    public long createGC(int drawable) {
+        return con.createGC(drawable);
+    }
+
+    public void freeGC(long gc) {
+        con.freeGC(gc);
+    }
+
+    public void copyArea(int src, int dst, long gc, int srcx, int srcy,
+                         int width, int height, int dstx, int dsty) {
+        con.copyArea(src, dst, gc, srcx, srcy, width, height, dstx, dsty);
+    }
+
+    public void maskedComposite(byte op, int src, int eaMask, int dst,
+            int srcX, int srcY, int dstX, int dstY, int width,
+            int height, int maskScan, int maskOff, byte[] mask, float ea) {
+        con.maskedComposite(op, src, eaMask, dst, srcX, srcY, dstX, dstY,
+                            width, height, maskScan, maskOff, mask, ea);
+    }
+
+    public void setGCClipRectangles(long gc, Region clip) {
+        con.setGCClipRectangles(gc, clip);
+    }
+
+    public void GCRectangles(int drawable, long gc, GrowableRectArray rects) {
+        con.GCRectangles(drawable, gc, rects);
+    }
+
+    public void setClipRectangles(int picture, Region clip) {
+        PictureState state = getState(picture);
+        boolean changed = !state.clipKnown ||
+            (clip == null ? state.clip != null : !clip.equals(state.clip));
+        if (isNeeded(CLIP, changed)) {
+            state.clipKnown = true;
+            state.clip = clip;
+            con.setClipRectangles(picture, clip);
+        }
+    }
+
+    public void setGCExposures(long gc, boolean exposure) {
+        con.setGCExposures(gc, exposure);
+    }
+
+    public void setGCForeground(long gc, int pixel) {
+        con.setGCForeground(gc, pixel);
+    }
+
+    public void setPictureTransform(int picture, AffineTransform transform) {
+        PictureState state = getState(picture);
+        if (isNeeded(TRANSFORM, !transform.equals(state.transform))) {
+            // the caller may modify its transform later
+            state.transform = new AffineTransform(transform);
+            con.setPictureTransform(picture, transform);
+        }
+    }
+
+    public void setPictureRepeat(int picture, int repeat) {
+        PictureState state = getState(picture);
+        if (isNeeded(REPEAT, repeat != state.repeat)) {
+            state.repeat = repeat;
+            con.setPictureRepeat(picture, repeat);
+        }
+    }
+
+    public void setFilter(int picture, int filter) {
+        PictureState state = getState(picture);
+        if (isNeeded(FILTER, filter != state.filter)) {
+            state.filter = filter;
+            con.setFilter(picture, filter);
+        }
+    }
+
+    public void renderRectangle(int dst, byte op, XRColor color,
+                                int x, int y, int width, int height) {
+        con.renderRectangle(dst, op, color, x, y, width, height);
+    }
+
+    public void renderRectangles(int dst, byte op, XRColor color,
+                                 GrowableRectArray rects) {
+        con.renderRectangles(dst, op, color, rects);
+    }
+
+    public void renderComposite(byte op, int src, int mask, int dst,
+                                int srcX, int srcY, int maskX, int maskY,
+                                int dstX, int dstY, int width, int height) {
+        con.renderComposite(op, src, mask, dst, srcX, srcY, maskX, maskY,
+                            dstX, dstY, width, height);
+    }
+
+    public int XRenderCreateGlyphSet(int formatID) {
+        return con.XRenderCreateGlyphSet(formatID);
+    }
+
+    public void XRenderAddGlyphs(int glyphSet, GlyphList gl,
+                                 List<XRGlyphCacheEntry> cacheEntries,
+                                 byte[] pixelData) {
+        con.XRenderAddGlyphs(glyphSet, gl, cacheEntries, pixelData);
+    }
+
+    public void XRenderFreeGlyphs(int glyphSet, int[] gids) {
+        con.XRenderFreeGlyphs(glyphSet, gids);
+    }
+
+    public void XRenderCompositeText(byte op, int src, int dst,
+                                     int maskFormatID,
+                                     int xSrc, int ySrc, int xDst, int yDst,
+                                     int glyphset, GrowableEltArray elts) {
+        con.XRenderCompositeText(op, src, dst, maskFormatID,
+                                 xSrc, ySrc, xDst, yDst, glyphset, elts);
+    }
+
+    public int createRadialGradient(float centerX, float centerY,
+                                    float innerRadius, float outerRadius,
+                                    float[] fractions, int[] pixels,
+                                    int repeat) {
+        int picture = con.createRadialGradient(centerX, centerY,
+                                               innerRadius, outerRadius,
+                                               fractions, pixels, repeat);
+        states.remove(picture);
+        return picture;
+    }
+
+    public int createLinearGradient(Point2D p1, Point2D p2, float[] fractions,
+                                    int[] pixels, int repeat) {
+        int picture = con.createLinearGradient(p1, p2, fractions, pixels,
+                                               repeat);
+        states.remove(picture);
+        return picture;
+    }
+
+    public void setGCMode(long gc, boolean copy) {
+        con.setGCMode(gc, copy);
+    }
+}
@@ -27,10 +27,12 @@ package sun.java2d.xr;
 
 import java.awt.*;
 import java.awt.geom.*;
+import java.security.AccessController;
 
 import sun.font.*;
 import sun.java2d.*;
 import sun.java2d.loops.*;
+import sun.security.action.GetPropertyAction;
 
 /**
  * Manages per-application resources, e.g. the 1x1 pixmap used for solid color
@@ -43,6 +45,11 @@ import sun.java2d.loops.*;
 public class XRCompositeManager {
     private static XRCompositeManager instance;
 
+    /** Whether the Picture state is shadowed (see XRBackendShadow). */
+    private static final boolean useShadow =
+        Boolean.parseBoolean(AccessController.doPrivileged(
+            new GetPropertyAction("sun.java2d.xr.shadow")));
+
     private static final int SOLID = 0;
     private static final int TEXTURE = 1;
     private static final int GRADIENT = 2;
@@ -89,6 +96,9 @@ public class XRCompositeManager {
         } else {
             con = new XRBackendNative();
         }
+        if (useShadow) {
+            con = new XRBackendShadow(con);
+        }
 
        con.initResources(surface.getXid());
 
@@ -29,6 +29,8 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.awt.image.*;
 import sun.awt.*;
+import sun.java2d.Disposer;
+import sun.java2d.DisposerRecord;
 import sun.java2d.InvalidPipeException;
 import sun.java2d.SunGraphics2D;
 import sun.java2d.SurfaceData;
@@ -292,6 +294,14 @@ public abstract class XRSurfaceData extends XSurfaceData {
             initXRPicture(getNativeOps(), pictureFormat);
             renderQueue = XRCompositeManager.getInstance(this).getBackend();
             maskBuffer = XRCompositeManager.getInstance(this);
+
+            if (renderQueue instanceof XRBackendShadow) {
+                // the XID of the new picture may have been handed out
+                // before, and the picture is freed natively on disposal
+                forgetPicture();
+                Disposer.addRecord(this, new PictureDisposerRecord(
+                    (XRBackendShadow) renderQueue, picture));
+            }
         } catch (Throwable ex) {
             ex.printStackTrace();
         } finally {
@@ -361,6 +371,10 @@ public abstract class XRSurfaceData extends XSurfaceData {
         {
             try {
                 SunToolkit.awtLock();
+                if (!isValid()) {
+                    // the GC has been freed along with the surface
+                    throw new InvalidPipeException("bounds changed");
+                }
                 boolean needExposures = canSourceSendExposures(x, y, w, h);
                 validateCopyAreaGC(sg2d.getCompClip(), needExposures);
                 renderQueue.copyArea(xid, xid, xgc, x, y, w, h, x + dx, y + dy);
@@ -399,9 +413,42 @@ public abstract class XRSurfaceData extends XSurfaceData {
             setInvalid();
             super.invalidate();
         }
+        if (gcDisposer != null) {
+            gcDisposer.dispose();
+        }
+        forgetPicture();
+    }
+
+    /**
+     * Frees the GC of a surface, once the surface is invalidated or
+     * collected.  The GC is created and freed through the backend, which
+     * keeps per-GC state (see XRBackendDeferred), so that it is never freed
+     * (and its pointer reused) behind the back of the backend.
+     */
+    private static final class GCDisposerRecord implements DisposerRecord {
+        private final XRBackend renderQueue;
+        private long xgc;
+
+        GCDisposerRecord(XRBackend renderQueue, long xgc) {
+            this.renderQueue = renderQueue;
+            this.xgc = xgc;
+        }
+
+        public void dispose() {
+            try {
+                SunToolkit.awtLock();
+                if (xgc != 0) {
+                    renderQueue.freeGC(xgc);
+                    xgc = 0;
+                }
+            } finally {
+                SunToolkit.awtUnlock();
+            }
+        }
     }
 
     private long xgc; // GC is still used for copyArea
+    private GCDisposerRecord gcDisposer;
     private int validatedGCForegroundPixel = 0;
     private XORComposite validatedXorComp;
     private int xid;
@@ -470,6 +517,47 @@ public abstract class XRSurfaceData extends XSurfaceData {
         }
     }
 
+    /**
+     * Forgets the state of the picture shadowed by the backend, as the
+     * picture is about to be freed natively.
+     */
+    void forgetPicture() {
+        if (renderQueue instanceof XRBackendShadow) {
+            try {
+                SunToolkit.awtLock();
+                ((XRBackendShadow) renderQueue).forgetPicture(picture);
+            } finally {
+                SunToolkit.awtUnlock();
+            }
+        }
+    }
+
+    /**
+     * Forgets the shadowed state of the picture of a collected surface,
+     * which is freed natively.  Forgetting the state of a picture whose
+     * XID has been handed out again in the meantime is harmless.
+     */
+    private static final class PictureDisposerRecord
+        implements DisposerRecord
+    {
+        private final XRBackendShadow renderQueue;
+        private final int picture;
+
+        PictureDisposerRecord(XRBackendShadow renderQueue, int picture) {
+            this.renderQueue = renderQueue;
+            this.picture = picture;
+        }
+
+        public void dispose() {
+            try {
+                SunToolkit.awtLock();
+                renderQueue.forgetPicture(picture);
+            } finally {
+                SunToolkit.awtUnlock();
+            }
+        }
+    }
+
     /**
      * Validates the Surface when used as destination.
      */
@@ -512,7 +600,9 @@ public abstract class XRSurfaceData extends XSurfaceData {
         if (xrpipe == null) {
             try {
                 SunToolkit.awtLock();
-                xgc = XCreateGC(getNativeOps());
+                xgc = renderQueue.createGC(xid);
+                gcDisposer = new GCDisposerRecord(renderQueue, xgc);
+                Disposer.addRecord(this, gcDisposer);
 
                 xrpipe = new XRRenderer(maskBuffer.getMaskBuffer());
                 xrtxpipe = new PixelToShapeConverter(xrpipe);
@@ -30,6 +30,7 @@ import java.awt.geom.Point2D;
 import java.awt.MultipleGradientPaint.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.*;
+import java.nio.ByteBuffer;
 import sun.java2d.loops.*;
 import static java.awt.AlphaComposite.*;
 
@@ -79,6 +80,9 @@ public class XRUtils {
     public static final int PictStandardA4 = 3;
     public static final int PictStandardA1 = 4;
 
+    /* The maximum length of a request with a 16 bit length field */
+    public static final int MAX_CORE_REQUEST_LENGTH = 65535;
+
     /**
      * Maps the specified affineTransformOp to the corresponding XRender image
      * filter.
@@ -205,6 +209,47 @@ public class XRUtils {
         return signed;
     }
 
+    /**
+     * Returns the length (in 4 byte units) of a request of the given length
+     * once encoded, which includes the extended length field of
+     * BIG-REQUESTS for requests longer than MAX_CORE_REQUEST_LENGTH.
+     */
+    public static int getEncodedRequestLength(int requestLength) {
+        return (requestLength > MAX_CORE_REQUEST_LENGTH) ?
+            requestLength + 1 : requestLength;
+    }
+
+    /**
+     * Puts the header of a request of the given length (not counting the
+     * extended length field), with the extended length field of
+     * BIG-REQUESTS if it is longer than MAX_CORE_REQUEST_LENGTH.
+     */
+    public static void putRequestHeader(ByteBuffer buffer, int opcode,
+                                        int data, int requestLength) {
+        buffer.put((byte) opcode);
+        buffer.put((byte) data);
+        if (requestLength > MAX_CORE_REQUEST_LENGTH) {
+            buffer.putShort((short) 0);
+            buffer.putInt(requestLength + 1);
+        } else {
+            buffer.putShort((short) requestLength);
+        }
+    }
+
+    /**
+     * Puts the given rectangles as a list of RECTANGLEs.
+     */
+    public static void putRectangles(ByteBuffer buffer,
+                                     GrowableRectArray rects,
+                                     int first, int cnt) {
+        for (int i = first; i < first + cnt; i++) {
+            buffer.putShort((short) rects.getX(i));
+            buffer.putShort((short) rects.getY(i));
+            buffer.putShort((short) rects.getWidth(i));
+            buffer.putShort((short) rects.getHeight(i));
+        }
+    }
+
     /**
      * Maps the specified Java2D composition rule, to the corresponding XRender
      * composition rule.
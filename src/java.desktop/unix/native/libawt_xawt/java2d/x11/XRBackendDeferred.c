@@ -72,6 +72,11 @@ Java_sun_java2d_xr_XRBackendDeferred_nativeInit
     if (renderMajorID == NULL) {
         return JNI_FALSE;
     }
+
+    jfieldID maxReqLenID = (*env)->GetStaticFieldID(env, cls, "MAX_REQUEST_LENGTH", "I");
+    if (maxReqLenID == NULL) {
+        return JNI_FALSE;
+    }
     
     int major_opcode, first_event, first_error;
     XQueryExtension(awt_display, "RENDER", &major_opcode, &first_event, &first_error);
@@ -80,10 +85,27 @@ Java_sun_java2d_xr_XRBackendDeferred_nativeInit
     protBufPtr = (*env)->GetDirectBufferAddress(env, protoBuf);
     backendObj = (jobject) (*env)->NewGlobalRef(env, this);
     (*env)->SetStaticIntField(env, cls, renderMajorID, (jint) major_opcode);
+
+    // Xlib enables BIG-REQUESTS when the server supports it, in which case
+    // requests may be longer than the 65535 units of the core protocol
+    long maxReqLen = XExtendedMaxRequestSize(awt_display);
+    if (maxReqLen == 0) {
+        maxReqLen = XMaxRequestSize(awt_display);
+    }
+    if (maxReqLen > 0x7FFFFFFF) {
+        maxReqLen = 0x7FFFFFFF;
+    }
+    (*env)->SetStaticIntField(env, cls, maxReqLenID, (jint) maxReqLen);
     
     return JNI_TRUE;
 }
 
+JNIEXPORT void JNICALL
+Java_sun_java2d_xr_XRBackendDeferred_setProtocolBuffer
+ (JNIEnv *env, jobject this, jobject protoBuf) {
+    protBufPtr = (*env)->GetDirectBufferAddress(env, protoBuf);
+}
+
 JNIEXPORT void JNICALL
 Java_sun_java2d_xr_XRBackendDeferred_issueSyncReq
  (JNIEnv *env, jobject this) {
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+/*
+ * @test
+ * @summary Verifies the size classes and the budget of the pool of
+ *          intermediate surfaces of the OGL blit loops
+ * @modules java.desktop/sun.java2d
+ *          java.desktop/sun.java2d.opengl:open
+ * @run main/othervm -Djava.awt.headless=true
+ *                   -Dsun.java2d.opengl.surfacePool=1 OGLSurfacePoolTest
+ */
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Method;
+import sun.java2d.SurfaceData;
+
+public class OGLSurfacePoolTest {
+
+    private static final int ARGB = BufferedImage.TYPE_INT_ARGB;
+    private static final int RGB = BufferedImage.TYPE_INT_RGB;
+
+    private static Method checkout;
+    private static Method checkin;
+
+    public static void main(String[] args) throws Exception {
+        Class<?> c = Class.forName("sun.java2d.opengl.OGLSurfacePool");
+        checkout = c.getDeclaredMethod("checkout",
+                                       int.class, int.class, int.class);
+        checkout.setAccessible(true);
+        checkin = c.getDeclaredMethod("checkin",
+                                      SurfaceData.class, int.class);
+        checkin.setAccessible(true);
+
+        testSizeClasses();
+        testReuse();
+        testBudget();
+    }
+
+    private static SurfaceData checkout(int w, int h, int type)
+        throws Exception
+    {
+        return (SurfaceData)checkout.invoke(null, w, h, type);
+    }
+
+    private static void checkin(SurfaceData sd, int type) throws Exception {
+        checkin.invoke(null, sd, type);
+    }
+
+    private static void checkSize(int w, int h, int cw, int ch)
+        throws Exception
+    {
+        Rectangle r = checkout(w, h, ARGB).getBounds();
+        if (r.width != cw || r.height != ch) {
+            throw new RuntimeException("Test failed: " + w + "x" + h +
+                                       " checked out as " + r.width + "x" +
+                                       r.height + ", expected " + cw + "x" +
+                                       ch);
+        }
+    }
+
+    private static void testSizeClasses() throws Exception {
+        // the power of two above each dimension, at least 16
+        checkSize(1, 1, 16, 16);
+        checkSize(16, 17, 16, 32);
+        checkSize(100, 33, 128, 64);
+        checkSize(2048, 1024, 2048, 1024);
+        // larger surfaces have their exact size
+        checkSize(2049, 10, 2049, 10);
+    }
+
+    private static void testReuse() throws Exception {
+        SurfaceData sd = checkout(20, 65, ARGB);
+        checkin(sd, ARGB);
+        // the pooled surface is not reused for another type or class
+        check(checkout(20, 65, RGB) != sd, "reused for another type");
+        check(checkout(20, 129, ARGB) != sd, "reused for another class");
+        // but is reused for any region of its class
+        check(checkout(17, 100, ARGB) == sd, "not reused in its class");
+        // and only once
+        check(checkout(17, 100, ARGB) != sd, "reused twice");
+
+        // the surfaces larger than the pooled size are never pooled
+        SurfaceData large = checkout(2049, 10, ARGB);
+        checkin(large, ARGB);
+        check(checkout(2049, 10, ARGB) != large, "large surface pooled");
+    }
+
+    private static void testBudget() throws Exception {
+        // a 512x512 int surface uses the whole 1MB budget
+        SurfaceData sd1 = checkout(512, 512, ARGB);
+        SurfaceData sd2 = checkout(512, 512, ARGB);
+        checkin(sd1, ARGB);
+        checkin(sd2, ARGB);
+        check(checkout(512, 512, ARGB) == sd1, "pooled surface not reused");
+        check(checkout(512, 512, ARGB) != sd2, "surface beyond budget pooled");
+    }
+
+    private static void check(boolean condition, String msg) {
+        if (!condition) {
+            throw new RuntimeException("Test failed: " + msg);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+/*
+ * @test
+ * @summary Verifies the parsing of the RenderQueue flush policies
+ * @modules java.desktop/sun.java2d.pipe
+ * @run main FlushPolicyTest
+ */
+
+import sun.java2d.pipe.FlushPolicy;
+
+public class FlushPolicyTest {
+
+    public static void main(String[] args) {
+        testPresets();
+        testParameters();
+        testMalformed();
+        testShouldFlush();
+    }
+
+    private static void testPresets() {
+        check(FlushPolicy.parse(null) == FlushPolicy.DEFAULT, "null spec");
+        check(FlushPolicy.parse("") == FlushPolicy.DEFAULT, "empty spec");
+        check(FlushPolicy.parse("default") == FlushPolicy.DEFAULT,
+              "default preset");
+        check(FlushPolicy.parse("interactive") == FlushPolicy.INTERACTIVE,
+              "interactive preset");
+        check(FlushPolicy.parse(" batch ") == FlushPolicy.BATCH,
+              "batch preset");
+
+        check(FlushPolicy.DEFAULT.getPollInterval() == 10, "default poll");
+        check(FlushPolicy.INTERACTIVE.getPollInterval() == 2,
+              "interactive poll");
+        check(FlushPolicy.BATCH.getPollInterval() == 20, "batch poll");
+        check(FlushPolicy.DEFAULT.isFrameFlushEnabled(), "default frame");
+        check(!FlushPolicy.BATCH.isFrameFlushEnabled(), "batch frame");
+    }
+
+    private static void testParameters() {
+        // the missing parameters are taken from the preset
+        FlushPolicy p = FlushPolicy.parse("interactive,latency=8");
+        check(p.getPollInterval() == 2, "inherited poll");
+        check(p.shouldFlush(1, 100, 8, 0), "latency reached");
+        check(!p.shouldFlush(1, 100, 7, 0), "latency not reached");
+        check(p.shouldFlush(1, 100, 0, 4), "inherited idle");
+        check(p.shouldFlush(25, 100, 0, 0), "inherited fill");
+
+        // without a preset, the default one is used
+        p = FlushPolicy.parse("poll=5, frame=false");
+        check(p.getPollInterval() == 5, "poll");
+        check(!p.isFrameFlushEnabled(), "frame");
+        check(p.shouldFlush(1, 100, 100, 0), "default latency");
+
+        p = FlushPolicy.parse("batch,frame=true");
+        check(p.isFrameFlushEnabled(), "frame override");
+
+        // the poll interval is at least 1ms
+        check(FlushPolicy.parse("poll=0").getPollInterval() == 1,
+              "minimum poll");
+    }
+
+    private static void testMalformed() {
+        String[] specs = {
+            "bogus", "bogus,latency=8", "latency=abc", "foo=1",
+            "interactive,latency", "poll=1,batch"
+        };
+        for (String spec : specs) {
+            check(FlushPolicy.parse(spec) == FlushPolicy.DEFAULT,
+                  "malformed spec: " + spec);
+        }
+    }
+
+    private static void testShouldFlush() {
+        // zero disables a trigger
+        FlushPolicy p = FlushPolicy.parse("latency=0,idle=0,fill=50");
+        check(!p.shouldFlush(49, 100, 1000, 1000), "disabled triggers");
+        check(p.shouldFlush(50, 100, 0, 0), "fill reached");
+
+        // the fill level is clamped to the capacity
+        p = FlushPolicy.parse("latency=0,idle=0,fill=200");
+        check(!p.shouldFlush(99, 100, 0, 0), "clamped fill not reached");
+        check(p.shouldFlush(100, 100, 0, 0), "clamped fill reached");
+
+        // an empty buffer is never flushed
+        check(!FlushPolicy.DEFAULT.shouldFlush(0, 100, 1000, 1000),
+              "empty buffer");
+    }
+
+    private static void check(boolean condition, String msg) {
+        if (!condition) {
+            throw new RuntimeException("Test failed: " + msg);
+        }
+    }
+}
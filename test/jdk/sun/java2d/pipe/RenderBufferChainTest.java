@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+/*
+ * @test
+ * @summary Verifies that the segments spilled to a RenderBufferChain are
+ *          flushed in order, and returned to the pool
+ * @modules java.base/jdk.internal.misc
+ *          java.desktop/sun.java2d.pipe
+ * @run main RenderBufferChainTest
+ */
+
+import java.util.ArrayList;
+import jdk.internal.misc.Unsafe;
+import sun.java2d.pipe.RenderBuffer;
+import sun.java2d.pipe.RenderBufferChain;
+
+public class RenderBufferChainTest {
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    private static final int SEGMENT_SIZE = 64;
+    private static final int MAX_BYTES = 128;
+
+    /** Records the segments passed by flush(), and their first int. */
+    private static final class Recorder implements RenderBufferChain.Target {
+        final ArrayList<Long> addrs = new ArrayList<Long>();
+        final ArrayList<Integer> limits = new ArrayList<Integer>();
+        final ArrayList<Integer> values = new ArrayList<Integer>();
+
+        public void flushSegment(long addr, int limit) {
+            addrs.add(addr);
+            limits.add(limit);
+            values.add(unsafe.getInt(addr));
+        }
+    }
+
+    public static void main(String[] args) {
+        testSpillAndFlush();
+        testRejectedSpills();
+        testFailedFlush();
+        testTrim();
+    }
+
+    private static RenderBuffer fill(RenderBuffer buf, int first, int n) {
+        for (int i = 0; i < n; i++) {
+            buf.putInt(first + i);
+        }
+        return buf;
+    }
+
+    private static void testSpillAndFlush() {
+        RenderBufferChain chain =
+            new RenderBufferChain(SEGMENT_SIZE, MAX_BYTES, 60000);
+        RenderBuffer buf = RenderBuffer.allocate(SEGMENT_SIZE * 2);
+
+        check(chain.spill(fill(buf, 100, 3)), "first spill");
+        check(buf.position() == 0, "buffer cleared");
+        check(chain.spill(fill(buf, 200, 4)), "second spill");
+        check(chain.getBytes() == 28, "chain bytes: " + chain.getBytes());
+
+        // an empty buffer adds no segment
+        check(chain.spill(buf), "empty spill");
+        check(chain.getBytes() == 28, "empty spill bytes");
+
+        Recorder r = new Recorder();
+        chain.flush(r);
+        check(r.limits.size() == 2, "segment count: " + r.limits.size());
+        check(r.limits.get(0) == 12 && r.limits.get(1) == 16,
+              "segment limits: " + r.limits);
+        check(r.values.get(0) == 100 && r.values.get(1) == 200,
+              "segment order: " + r.values);
+        check(chain.getBytes() == 0, "chain flushed");
+
+        // the flushed segments are reused
+        check(chain.spill(fill(buf, 300, 1)), "third spill");
+        Recorder r2 = new Recorder();
+        chain.flush(r2);
+        check(r2.values.get(0) == 300, "reused segment content");
+        check(r.addrs.contains(r2.addrs.get(0)), "segment not reused");
+    }
+
+    private static void testRejectedSpills() {
+        RenderBufferChain chain =
+            new RenderBufferChain(SEGMENT_SIZE, MAX_BYTES, 60000);
+        RenderBuffer buf = RenderBuffer.allocate(SEGMENT_SIZE * 4);
+
+        // larger than a segment: the buffer is left unchanged
+        fill(buf, 0, SEGMENT_SIZE / 4 + 1);
+        check(!chain.spill(buf), "oversized spill");
+        check(buf.position() == SEGMENT_SIZE + 4, "oversized buffer kept");
+        buf.clear();
+
+        // beyond the maximum size of the chain
+        check(chain.spill(fill(buf, 0, SEGMENT_SIZE / 4)), "spill 1");
+        check(chain.spill(fill(buf, 0, SEGMENT_SIZE / 4)), "spill 2");
+        check(!chain.spill(fill(buf, 0, 1)), "spill beyond max bytes");
+        check(buf.position() == 4, "rejected buffer kept");
+        check(chain.getBytes() == MAX_BYTES, "full chain bytes");
+        chain.clear();
+        check(chain.getBytes() == 0, "cleared chain");
+    }
+
+    private static void testFailedFlush() {
+        RenderBufferChain chain =
+            new RenderBufferChain(SEGMENT_SIZE, MAX_BYTES, 60000);
+        RenderBuffer buf = RenderBuffer.allocate(SEGMENT_SIZE);
+        chain.spill(fill(buf, 0, 2));
+        try {
+            chain.flush((addr, limit) -> {
+                throw new IllegalStateException("flush failure");
+            });
+            throw new RuntimeException("Test failed: flush did not fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        check(chain.getBytes() == 0, "segments returned after failure");
+    }
+
+    private static void testTrim() {
+        RenderBuffer buf = RenderBuffer.allocate(SEGMENT_SIZE);
+
+        RenderBufferChain chain =
+            new RenderBufferChain(SEGMENT_SIZE, MAX_BYTES, 60000);
+        chain.spill(fill(buf, 0, 2));
+        chain.flush(new Recorder());
+        check(!chain.isTrimDue(), "trim due before idle time");
+
+        chain = new RenderBufferChain(SEGMENT_SIZE, MAX_BYTES, 0);
+        check(!chain.isTrimDue(), "trim due without pooled segment");
+        chain.spill(fill(buf, 0, 2));
+        chain.flush(new Recorder());
+        check(chain.isTrimDue(), "trim not due after idle time");
+        chain.trim();
+        check(!chain.isTrimDue(), "pooled segments not released");
+    }
+
+    private static void check(boolean condition, String msg) {
+        if (!condition) {
+            throw new RuntimeException("Test failed: " + msg);
+        }
+    }
+}
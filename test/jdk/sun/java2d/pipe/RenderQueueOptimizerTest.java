@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+/*
+ * @test
+ * @summary Verifies the rewrites of the RenderQueue peephole optimizer, and
+ *          that they keep the relative alignment of the operations
+ * @modules java.base/jdk.internal.misc
+ *          java.desktop/sun.java2d.pipe
+ * @run main RenderQueueOptimizerTest
+ */
+
+import jdk.internal.misc.Unsafe;
+import sun.java2d.pipe.RenderQueueOptimizer;
+import static sun.java2d.pipe.BufferedOpCodes.*;
+
+public class RenderQueueOptimizerTest {
+
+    private static final Unsafe unsafe = Unsafe.getUnsafe();
+
+    private static final int UNKNOWN = 0x7fff;
+
+    public static void main(String[] args) {
+        testMergeFillRects();
+        testEmptyFillRects();
+        testDropOverriddenState();
+        testUnchanged();
+        testUnknownOpcode();
+    }
+
+    /**
+     * Rewrites the given batch, and checks the result against the expected
+     * one.
+     */
+    private static void check(int[] batch, int[] expected, String msg) {
+        long addr = unsafe.allocateMemory(4 * batch.length);
+        try {
+            for (int i = 0; i < batch.length; i++) {
+                unsafe.putInt(addr + 4 * i, batch[i]);
+            }
+            int limit = new RenderQueueOptimizer().optimize(addr,
+                                                            4 * batch.length);
+            if (limit != 4 * expected.length) {
+                throw new RuntimeException("Test failed: " + msg +
+                                           ": limit=" + limit);
+            }
+            // the 8-byte parameters of the following operations stay aligned
+            if (((4 * batch.length - limit) & 7) != 0) {
+                throw new RuntimeException("Test failed: " + msg +
+                                           ": misaligned");
+            }
+            for (int i = 0; i < expected.length; i++) {
+                int value = unsafe.getInt(addr + 4 * i);
+                if (value != expected[i]) {
+                    throw new RuntimeException("Test failed: " + msg +
+                                               ": int " + i + "=" + value +
+                                               " expected " + expected[i]);
+                }
+            }
+        } finally {
+            unsafe.freeMemory(addr);
+        }
+    }
+
+    private static void testMergeFillRects() {
+        // two rectangles: 40 bytes shrink to 40, no padding needed
+        check(new int[] {
+                  FILL_RECT, 1, 2, 3, 4,
+                  FILL_RECT, 10, 20, 30, 40
+              },
+              new int[] {
+                  FILL_SPANS, 2,
+                  1, 2, 4, 6,
+                  10, 20, 40, 60
+              },
+              "two FILL_RECTs");
+
+        // three rectangles: 60 bytes shrink to 56, a NOOP keeps alignment
+        check(new int[] {
+                  FILL_RECT, 0, 0, 1, 1,
+                  FILL_RECT, 5, 5, 2, 2,
+                  FILL_RECT, 9, 9, 3, 3,
+                  SET_COLOR, 0xff
+              },
+              new int[] {
+                  FILL_SPANS, 3,
+                  0, 0, 1, 1,
+                  5, 5, 7, 7,
+                  9, 9, 12, 12,
+                  NOOP,
+                  SET_COLOR, 0xff
+              },
+              "three FILL_RECTs");
+
+        // a single rectangle is left as is
+        check(new int[] { FILL_RECT, 1, 2, 3, 4, SET_COLOR, 0 },
+              new int[] { FILL_RECT, 1, 2, 3, 4, SET_COLOR, 0 },
+              "single FILL_RECT");
+    }
+
+    private static void testEmptyFillRects() {
+        // the empty rectangles, which FILL_RECT skips, are not turned into
+        // spans (a span would be drawn)
+        check(new int[] {
+                  FILL_RECT, 10, 10, -5, 5,
+                  FILL_RECT, 1, 2, 3, 4,
+                  FILL_RECT, 5, 5, 2, 0
+              },
+              new int[] {
+                  FILL_SPANS, 1,
+                  1, 2, 4, 6,
+                  NOOP
+              },
+              "empty FILL_RECTs");
+
+        // a run of empty rectangles is dropped
+        check(new int[] {
+                  FILL_RECT, 0, 0, 0, 5,
+                  FILL_RECT, 0, 0, -1, -1,
+                  SET_COLOR, 0
+              },
+              new int[] { SET_COLOR, 0 },
+              "only empty FILL_RECTs");
+
+        // the end coordinates of the spans do not overflow
+        int max = Integer.MAX_VALUE;
+        check(new int[] {
+                  FILL_RECT, max - 1, 0, 10, 1,
+                  FILL_RECT, 0, max - 5, 1, 100
+              },
+              new int[] {
+                  FILL_SPANS, 2,
+                  max - 1, 0, max, 1,
+                  0, max - 5, 1, max
+              },
+              "overflowing FILL_RECTs");
+    }
+
+    private static void testDropOverriddenState() {
+        // a clip overridden by the next clip operation is dropped, and
+        // replaced by a NOOP as the batch shrinks by 5 words
+        check(new int[] {
+                  SET_RECT_CLIP, 0, 0, 10, 10,
+                  RESET_CLIP,
+                  FILL_RECT, 1, 2, 3, 4
+              },
+              new int[] {
+                  NOOP,
+                  RESET_CLIP,
+                  FILL_RECT, 1, 2, 3, 4
+              },
+              "overridden clip");
+
+        // NOOP tokens are skipped when looking for the next operation
+        check(new int[] {
+                  SET_COLOR, 1,
+                  NOOP,
+                  RESET_PAINT,
+                  NOOP
+              },
+              new int[] {
+                  NOOP,
+                  RESET_PAINT,
+                  NOOP
+              },
+              "overridden paint");
+    }
+
+    private static void testUnchanged() {
+        // a state followed by a different kind of state is kept
+        int[] batch = {
+            SET_COLOR, 1,
+            RESET_CLIP,
+            DRAW_LINE, 0, 0, 10, 10,
+            NOOP
+        };
+        check(batch, batch, "different states");
+    }
+
+    private static void testUnknownOpcode() {
+        // the bytes from an unknown opcode on are kept as is
+        check(new int[] {
+                  SET_RECT_CLIP, 0, 0, 10, 10,
+                  RESET_CLIP,
+                  UNKNOWN, FILL_RECT, 1, 2
+              },
+              new int[] {
+                  NOOP,
+                  RESET_CLIP,
+                  UNKNOWN, FILL_RECT, 1, 2
+              },
+              "unknown opcode");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+/*
+ * @test
+ * @summary Verifies the encoding of the requests of the deferred XRender
+ *          backend, with and without the extended length of BIG-REQUESTS
+ * @requires (os.family == "linux")
+ * @modules java.desktop/sun.java2d.xr
+ * @run main XRRequestEncodingTest
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import sun.java2d.xr.GrowableRectArray;
+import sun.java2d.xr.XRUtils;
+
+public class XRRequestEncodingTest {
+
+    public static void main(String[] args) {
+        testEncodedLength();
+        testCoreHeader();
+        testExtendedHeader();
+        testRectangles();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void testEncodedLength() {
+        check(XRUtils.getEncodedRequestLength(1) == 1, "short request");
+        check(XRUtils.getEncodedRequestLength(65535) == 65535,
+              "longest core request");
+        // the extended length field takes one more unit
+        check(XRUtils.getEncodedRequestLength(65536) == 65537,
+              "shortest extended request");
+    }
+
+    private static void testCoreHeader() {
+        ByteBuffer buf = allocate(16);
+        XRUtils.putRequestHeader(buf, 139, 26, 65535);
+        check(buf.position() == 4, "core header size");
+        check((buf.get(0) & 0xff) == 139, "major opcode");
+        check(buf.get(1) == 26, "minor opcode");
+        check((buf.getShort(2) & 0xffff) == 65535, "core length");
+    }
+
+    private static void testExtendedHeader() {
+        ByteBuffer buf = allocate(16);
+        XRUtils.putRequestHeader(buf, 70, 0, 100000);
+        check(buf.position() == 8, "extended header size");
+        check(buf.get(0) == 70 && buf.get(1) == 0, "opcode");
+        // a zero length, followed by the length including the extra unit
+        check(buf.getShort(2) == 0, "zero core length");
+        check(buf.getInt(4) == 100001, "extended length");
+    }
+
+    private static void testRectangles() {
+        GrowableRectArray rects = new GrowableRectArray(4);
+        rects.pushRectValues(1, 2, 3, 4);
+        rects.pushRectValues(-5, 6, 70000, 8);
+        rects.pushRectValues(9, 10, 11, 12);
+
+        ByteBuffer buf = allocate(32);
+        XRUtils.putRectangles(buf, rects, 1, 2);
+        check(buf.position() == 16, "two RECTANGLEs");
+        short[] expected = { -5, 6, (short) 70000, 8, 9, 10, 11, 12 };
+        for (int i = 0; i < expected.length; i++) {
+            check(buf.getShort(2 * i) == expected[i], "RECTANGLE field " + i);
+        }
+    }
+
+    private static void check(boolean condition, String msg) {
+        if (!condition) {
+            throw new RuntimeException("Test failed: " + msg);
+        }
+    }
+}